@@ -5,22 +5,58 @@ package com.srdc.messageapp.client;
  * It takes inputs address and port as input, and initializes client.
  */
 
+import com.srdc.messageapp.database.ContentCompressor;
+import com.srdc.messageapp.models.Message;
 import com.srdc.messageapp.server.ClientHandler;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.zip.Deflater;
 
 @SuppressWarnings({"BusyWait", "ThrowablePrintedToSystemOut"})
 public class Client {
 
+    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Path CACHE_DIRECTORY = Path.of(System.getProperty("user.home"), ".messageapp");
+    private static final int ATTACHMENT_CHUNK_SIZE = 48 * 1024; // a multiple of 3, so chunks encode without padding
+    // inflates the message lists the server sends deflated behind Z:::
+    private static final ContentCompressor TRANSFER_COMPRESSION = new ContentCompressor("Transfer", 1024, Deflater.BEST_SPEED);
+    // well within the server's idle timeout, so a live but idle client is never taken for a dead one
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 30_000;
+
     private Socket socket;
-    private BufferedReader input;
+    private InputStream input;
     private PrintWriter output;
     private Scanner scanner;
     private boolean loggedIn;
     private boolean isAdmin;
     private boolean running = true;
+    private String importPath;
+    private Path attachmentPath;
+    private volatile Path downloadPath;
+    // the user of the last conversation shown and the cursor of its older page, null if there is none
+    private volatile String conversationUser;
+    private volatile String conversationCursor;
+    private String username;
+    private LocalMessageStore inboxStore;
+    private LocalMessageStore outboxStore;
+    private volatile boolean showInboxAfterSync;
+    private volatile boolean showOutboxAfterSync;
 
     /**
      * Constructor for Client with
@@ -31,8 +67,9 @@ public class Client {
     public Client(String address, int port) {
         try {
             socket = new Socket(address, port);
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
+            // read as bytes, the raw content of a downloaded attachment follows its header line
+            input = new BufferedInputStream(socket.getInputStream());
+            output = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
             scanner = new Scanner(System.in);
             loggedIn = false;
             isAdmin = false;
@@ -55,13 +92,18 @@ public class Client {
     private String readUserInput() {
         if (!loggedIn) {
             System.out.print("Please log in.\nUsername: ");
-            String username = scanner.nextLine();
+            username = scanner.nextLine();
+            String token = readResumeToken();
+            if (token != null) {
+                // the server checks the token without a database query, the password is only asked if it fails
+                return "RESUME:::" + token;
+            }
             System.out.print("Password: ");
             String password = scanner.nextLine();
             return "LOGIN:::" + username + ":::" + password;
         }
 
-        System.out.print("Enter action (LOGOUT, SENDMSG, " + (isAdmin ? "ADDUSER, REMOVEUSER, UPDATEUSER, LISTUSERS, " : "") + "GETINBOX, GETOUTBOX): ");
+        System.out.print("Enter action (LOGOUT, SENDMSG, " + (isAdmin ? "ADDUSER, REMOVEUSER, UPDATEUSER, LISTUSERS, IMPORTUSERS, REMOVALS, CACHESTATS, STATS, " : "") + "GETINBOX, GETOUTBOX, GETCONVERSATION, WHOISONLINE, JOIN, POST, GETCHANNEL, GETATTACHMENT): ");
         String action = scanner.nextLine().toUpperCase();
         StringBuilder sb = new StringBuilder(action + ":::");
 
@@ -69,9 +111,78 @@ public class Client {
             case "LOGIN":
                 System.out.println("A user is already logged in.");
                 return null;
-            case "LOGOUT", "GETINBOX", "GETOUTBOX":
+            case "LOGOUT":
+                break;
+            case "GETINBOX":
+                System.out.print("Only the latest messages? (y/n): ");
+                if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                    sb.append("recent");
+                } else if (inboxStore != null) {
+                    // only fetch what the local copy is missing, the whole box is printed after the sync
+                    showInboxAfterSync = true;
+                    sb.append("since:::").append(inboxStore.getSyncCursor());
+                }
+                break;
+            case "JOIN", "GETCHANNEL":
+                System.out.print("Channel: ");
+                sb.append(scanner.nextLine().trim());
+                break;
+            case "POST":
+                System.out.print("Channel: ");
+                sb.append(scanner.nextLine().trim()).append(":::");
+                System.out.print("Title: ");
+                sb.append(scanner.nextLine()).append(":::");
+                System.out.print("Message: ");
+                sb.append(scanner.nextLine());
+                break;
+            case "GETCONVERSATION":
+                System.out.print("With user: ");
+                String other = scanner.nextLine().trim();
+                sb.append(other);
+                if (other.equals(conversationUser) && conversationCursor != null) {
+                    System.out.print("Show older messages? (y/n): ");
+                    if (scanner.nextLine().trim().equalsIgnoreCase("y")) {
+                        sb.append(":::before:::").append(conversationCursor);
+                    }
+                }
+                break;
+            case "GETATTACHMENT":
+                System.out.print("Attachment hash: ");
+                sb.append(scanner.nextLine().trim());
+                System.out.print("Save as: ");
+                downloadPath = Path.of(scanner.nextLine().trim());
+                break;
+            case "WHOISONLINE":
+                System.out.print("Username (empty to list everyone online): ");
+                sb.append(scanner.nextLine().trim());
+                break;
+            case "GETOUTBOX":
+                if (outboxStore != null) {
+                    showOutboxAfterSync = true;
+                    sb.append("since:::").append(outboxStore.getSyncCursor());
+                }
                 break;
             case "SENDMSG":
+                // lets the server drop the message if this request is ever sent twice
+                sb.append("id=").append(UUID.randomUUID()).append(":::");
+                System.out.print("Delete after how many seconds? (empty to keep): ");
+                String ttl = scanner.nextLine().trim();
+                if (!ttl.isEmpty()) {
+                    sb.append("ttl=").append(ttl).append(":::");
+                }
+                System.out.print("Attachment file (empty for none): ");
+                String attachment = scanner.nextLine().trim();
+                if (!attachment.isEmpty()) {
+                    Path file = Path.of(attachment);
+                    String hash = sha256(file);
+                    if (hash == null) {
+                        System.out.println("File not found.");
+                        return null;
+                    }
+                    // uploaded before the SENDMSG line, see uploadAttachment
+                    attachmentPath = file;
+                    sb.append("att=").append(hash).append(":::");
+                }
                 System.out.print("Receiver: ");
                 sb.append(scanner.nextLine()).append(":::");
                 System.out.print("Title: ");
@@ -79,7 +190,20 @@ public class Client {
                 System.out.print("Message: ");
                 sb.append(scanner.nextLine());
                 break;
-            case "ADDUSER", "REMOVEUSER", "UPDATEUSER", "LISTUSERS":
+            case "IMPORTUSERS":
+                if (!isAdmin) {
+                    System.out.println("Permission denied. Only administrators can importusers.");
+                    return null;
+                }
+                System.out.print("CSV file (username,name,surname,birthdate,gender,email,location,password,isAdmin): ");
+                importPath = scanner.nextLine();
+                if (!new File(importPath).isFile()) {
+                    System.out.println("File not found.");
+                    importPath = null;
+                    return null;
+                }
+                break;
+            case "ADDUSER", "REMOVEUSER", "UPDATEUSER", "LISTUSERS", "REMOVALS", "CACHESTATS", "STATS":
                 if (!isAdmin) {
                     System.out.println("Permission denied. Only administrators can " + action.toLowerCase() + ".");
                     return null;
@@ -103,9 +227,28 @@ public class Client {
                     sb.append(scanner.nextLine()).append(":::");
                     System.out.print("Is Admin (true/false): ");
                     sb.append(scanner.nextLine());
+                } else if (action.equals("STATS")) {
+                    System.out.print("From day (YYYY-MM-DD, empty for the last 7 days): ");
+                    String from = scanner.nextLine().trim();
+                    if (!from.isEmpty()) {
+                        System.out.print("To day (YYYY-MM-DD, empty for today): ");
+                        sb.append(from).append(":::").append(scanner.nextLine().trim());
+                    }
                 } else if (action.equals("REMOVEUSER")) {
                     System.out.print("Username: ");
                     sb.append(scanner.nextLine());
+                } else if (action.equals("LISTUSERS")) {
+                    System.out.print("Start after username (empty for first page): ");
+                    String after = scanner.nextLine().trim();
+                    if (!after.isEmpty()) {
+                        sb.append("after:::").append(after).append(":::");
+                    }
+                    System.out.print("Filter by (username / location, empty for none): ");
+                    String column = scanner.nextLine().trim().toLowerCase();
+                    if (!column.isEmpty()) {
+                        System.out.print("Prefix: ");
+                        sb.append(column).append(":::").append(scanner.nextLine().trim());
+                    }
                 }
                 break;
             default:
@@ -129,23 +272,45 @@ public class Client {
         Thread responseReader = new Thread(() -> {
             try {
                 String response;
-                while (running && (response = input.readLine()) != null) {
-                    if (response.isEmpty()) {
+                while (running && (response = readLine()) != null) {
+                    if (response.startsWith("Z:::")) {
+                        response = TRANSFER_COMPRESSION.decompress(Base64.getDecoder().decode(response.substring("Z:::".length())));
+                    }
+                    if (response.isEmpty() || response.equals("PONG") || response.startsWith("COMPRESSION:::")) {
                         continue;
                     }
                     if (response.startsWith("LISTUSERS:::")) {
-                        formatListUsers(response);
+                        printListUsersHeader();
+                    } else if (response.startsWith("USER:::")) {
+                        printListUsersRow(response);
+                    } else if (response.startsWith("ENDLISTUSERS:::")) {
+                        printListUsersFooter(response);
                     } else if (response.startsWith("GETINBOX:::") || response.startsWith("GETOUTBOX:::")) {
                         formatMessages(response);
+                    } else if (response.startsWith("SYNCINBOX:::") || response.startsWith("SYNCOUTBOX:::")) {
+                        syncMessages(response);
+                    } else if (response.startsWith("CONVERSATION:::")) {
+                        printConversation(response);
+                    } else if (response.startsWith("GETCHANNEL:::")) {
+                        printChannel(response);
+                    } else if (response.startsWith("ATTACHMENT:::")) {
+                        saveAttachment(response);
+                    } else if (response.startsWith("RESUMETOKEN:::")) {
+                        saveResumeToken(response.substring("RESUMETOKEN:::".length()));
                     } else {
                         System.out.println(response);
                         if (response.contains("Login successful")) {
                             loggedIn = true;
                             isAdmin = response.contains("Admin: true");
+                            openLocalStores();
                         } else if (response.contains("Logout successful")) {
                             loggedIn = false;
                             isAdmin = false;
-                        } else if (response.contains("Client will now close")) {
+                            closeLocalStores();
+                            deleteResumeToken();
+                        } else if (response.contains("Resume failed")) {
+                            deleteResumeToken();
+                        } else if (response.contains("Client will now close") || response.contains("Server is busy")) {
                             running = false;
                             closeClient();
                         }
@@ -156,11 +321,27 @@ public class Client {
             }
         });
         responseReader.start();
+        // long inbox, outbox and conversation responses are then sent deflated
+        output.println("COMPRESS:::deflate");
+        output.flush();
+        Thread heartbeat = new Thread(this::sendHeartbeats, "heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
 
         while (running) {
             String userInput = readUserInput();
             if (userInput != null) {
-                output.println(userInput);
+                // a heartbeat must not land between the lines of an upload or an import
+                synchronized (output) {
+                    if (attachmentPath != null) {
+                        uploadAttachment();
+                    }
+                    output.println(userInput);
+                    if (importPath != null) {
+                        streamImport();
+                    }
+                    output.flush();
+                }
                 try {
                     Thread.sleep(200);
                 } catch (InterruptedException e) {
@@ -171,20 +352,349 @@ public class Client {
     }
 
     /**
-     * Format the user list output taken from server-side by detokenizing.
-     * Protocol is again ":::".
+     * Sends a PING line at a fixed interval, so that the server keeps the connection open while
+     * the user is idle at the prompt.
+     */
+    private void sendHeartbeats() {
+        while (running) {
+            try {
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (output) {
+                output.println("PING");
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Reads a response line. Lines end with a newline like for a Reader, but the socket is read
+     * as bytes so that the raw bytes of an attachment can follow its header line.
+     *
+     * @return the line without its line terminator, null at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString(Charset.defaultCharset());
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * @return the SHA-256 hash of a file as the server computes it, null if the file cannot be read
+     */
+    private static String sha256(Path file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Streams the selected attachment to the server as base64 chunks, one per line, followed by
+     * the end marker.
      */
-    private void formatListUsers(String response) {
+    private void uploadAttachment() {
+        try (InputStream in = Files.newInputStream(attachmentPath)) {
+            output.println("ATTACH:::" + Files.size(attachmentPath));
+            byte[] chunk = new byte[ATTACHMENT_CHUNK_SIZE];
+            int read;
+            while ((read = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+                output.println(Base64.getEncoder().encodeToString(read == chunk.length ? chunk : Arrays.copyOf(chunk, read)));
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading attachment: " + e.getMessage());
+        } finally {
+            output.println("ENDATTACH");
+            attachmentPath = null;
+        }
+    }
+
+    /**
+     * Writes the raw bytes that follow an ATTACHMENT:::hash:::size line to the file chosen for
+     * the download, or to the downloads folder of the local cache.
+     */
+    private void saveAttachment(String response) throws IOException {
         String[] parts = response.split(":::");
+        long size = Long.parseLong(parts[2]);
+        Path target = downloadPath != null ? downloadPath : CACHE_DIRECTORY.resolve("downloads").resolve(parts[1]);
+        downloadPath = null;
+        OutputStream out = null;
+        try {
+            Files.createDirectories(target.toAbsolutePath().getParent());
+            out = new BufferedOutputStream(Files.newOutputStream(target));
+        } catch (IOException e) {
+            // the bytes are still read below, the next response follows them
+            System.out.println("\nCould not save attachment: " + e.getMessage());
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            long remaining = size;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Connection closed during download");
+                }
+                if (out != null) {
+                    out.write(buffer, 0, read);
+                }
+                remaining -= read;
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+        if (out != null) {
+            System.out.println("\nAttachment saved to " + target.toAbsolutePath() + " (" + size + " bytes)");
+        }
+    }
+
+    /**
+     * Streams the rows of the selected CSV file to the server, followed by the end marker.
+     */
+    private void streamImport() {
+        try (BufferedReader reader = new BufferedReader(new FileReader(importPath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isBlank()) {
+                    output.println(line);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading import file: " + e.getMessage());
+        } finally {
+            output.println("ENDIMPORT");
+            importPath = null;
+        }
+    }
+
+    /**
+     * Print the header of the user list. The rows follow as separate lines.
+     */
+    private void printListUsersHeader() {
         System.out.println("\nUser List:");
         System.out.println("-----------------------------------------------------------------------------------------------------------------------");
         System.out.printf("%-15s %-15s %-15s %-10s %-30s %-20s %-10s%n", "USERNAME", "NAME", "SURNAME", "GENDER", "EMAIL", "LOCATION", "ADMIN");
         System.out.println("-----------------------------------------------------------------------------------------------------------------------");
-        for (int i = 1; i < parts.length; i += 7) {
-            System.out.printf("%-15s %-15s %-15s %-10s %-30s %-20s %-10s%n",
-                    parts[i], parts[i + 1], parts[i + 2], parts[i + 3], parts[i + 4], parts[i + 5], parts[i + 6]);
-        }
+    }
+
+    /**
+     * Format one user row taken from server-side by detokenizing.
+     * Protocol is again ":::".
+     */
+    private void printListUsersRow(String response) {
+        String[] parts = response.split(":::");
+        System.out.printf("%-15s %-15s %-15s %-10s %-30s %-20s %-10s%n",
+                parts[1], parts[2], parts[3], parts[4], parts[5], parts[6], parts[7]);
+    }
+
+    /**
+     * Print the footer of the user list, with the username to continue after if there are more pages.
+     */
+    private void printListUsersFooter(String response) {
         System.out.println("-----------------------------------------------------------------------------------------------------------------------");
+        String next = response.substring("ENDLISTUSERS:::".length());
+        if (!next.isEmpty()) {
+            System.out.println("More users available. Run LISTUSERS again starting after: " + next);
+        }
+    }
+
+    /**
+     * @return the file the resume token of the current username is kept in
+     */
+    private Path resumeTokenFile() {
+        return CACHE_DIRECTORY.resolve(username.replaceAll("[^A-Za-z0-9_-]", "_") + ".token");
+    }
+
+    /**
+     * @return the stored resume token of the current username, null if there is none
+     */
+    private String readResumeToken() {
+        try {
+            Path file = resumeTokenFile();
+            return Files.exists(file) ? Files.readString(file).trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the resume token the server issued so that the next login needs no password.
+     */
+    private void saveResumeToken(String token) {
+        try {
+            Files.createDirectories(CACHE_DIRECTORY);
+            Files.writeString(resumeTokenFile(), token);
+        } catch (IOException e) {
+            System.out.println("Could not store resume token: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets the resume token, after a logout or when the server rejected it.
+     */
+    private void deleteResumeToken() {
+        try {
+            Files.deleteIfExists(resumeTokenFile());
+        } catch (IOException e) {
+            System.out.println("Could not delete resume token: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the local copies of the user's inbox and outbox, shows the cached inbox right away
+     * and asks the server only for the messages that arrived since.
+     */
+    private void openLocalStores() {
+        try {
+            inboxStore = new LocalMessageStore(CACHE_DIRECTORY, username, "inbox");
+            outboxStore = new LocalMessageStore(CACHE_DIRECTORY, username, "outbox");
+        } catch (IOException e) {
+            System.out.println("Local message cache unavailable: " + e.getMessage());
+            closeLocalStores();
+            return;
+        }
+        List<Message> cached = inboxStore.getMessages();
+        if (!cached.isEmpty()) {
+            printMessages(cached, true);
+        }
+        output.println("GETINBOX:::since:::" + inboxStore.getSyncCursor());
+        output.println("GETOUTBOX:::since:::" + outboxStore.getSyncCursor());
+        output.flush();
+    }
+
+    /**
+     * Closes the local copies of the user's boxes.
+     */
+    private void closeLocalStores() {
+        for (LocalMessageStore store : new LocalMessageStore[]{inboxStore, outboxStore}) {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing local message cache: " + e.getMessage());
+                }
+            }
+        }
+        inboxStore = null;
+        outboxStore = null;
+    }
+
+    /**
+     * Adds the new messages of a SYNCINBOX / SYNCOUTBOX response to the local copy and prints
+     * either the whole box, if the user asked for it, or just the new messages.
+     * Protocol is again ":::": the cursor of the next sync, then per message the message id as
+     * the first field and the expiry time ("never" if the message does not expire) as the last.
+     * The most recent messages are sent again until they are settled, so only the ones not
+     * stored yet count as new.
+     */
+    private void syncMessages(String response) {
+        boolean isInbox = response.startsWith("SYNCINBOX:::");
+        LocalMessageStore store = isInbox ? inboxStore : outboxStore;
+        if (store == null) {
+            return;
+        }
+        String[] parts = response.split(":::");
+        List<Message> received = new ArrayList<>();
+        for (int i = 2; i + 5 < parts.length; i += 6) {
+            String other = parts[i + 1];
+            String expiresAt = parts[i + 5];
+            received.add(new Message(Long.parseLong(parts[i]),
+                    isInbox ? other : username, isInbox ? username : other,
+                    parts[i + 2], parts[i + 3], LocalDateTime.parse(parts[i + 4], TIMESTAMP_FORMATTER),
+                    expiresAt.equals("never") ? null : LocalDateTime.parse(expiresAt, TIMESTAMP_FORMATTER)));
+        }
+        List<Message> added = received;
+        try {
+            added = store.addAll(received);
+            store.setSyncCursor(Long.parseLong(parts[1]));
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error updating local message cache: " + e.getMessage());
+        }
+        boolean showAll = isInbox ? showInboxAfterSync : showOutboxAfterSync;
+        if (showAll) {
+            printMessages(store.getMessages(), isInbox);
+        } else if (!added.isEmpty()) {
+            System.out.println("\n" + added.size() + (isInbox ? " new messages received:" : " messages sent from another device:"));
+            printMessages(added, isInbox);
+        }
+        if (isInbox) {
+            showInboxAfterSync = false;
+        } else {
+            showOutboxAfterSync = false;
+        }
+    }
+
+    /**
+     * Print messages of the inbox / outbox as a table.
+     */
+    private void printMessages(List<Message> messages, boolean isInbox) {
+        System.out.println(isInbox ? "\nInbox Messages:" : "\nOutbox Messages:");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        System.out.printf("%-15s %-20s %-20s %-50s%n", isInbox ? "FROM" : "TO", "TITLE", "TIMESTAMP", "CONTENT");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        for (Message message : messages) {
+            System.out.printf("%-15s %-20s %-20s %-50s%n", isInbox ? message.getSender() : message.getReceiver(),
+                    message.getTitle(), message.getTimestamp().format(TIMESTAMP_FORMATTER), message.getContent());
+        }
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+    }
+
+    /**
+     * Print a page of a conversation as a table and remember the cursor of the older page.
+     * Protocol is CONVERSATION:::user:::cursor, then sender, title, content and timestamp per message.
+     */
+    private void printConversation(String response) {
+        String[] parts = response.split(":::");
+        conversationUser = parts[1];
+        conversationCursor = parts[2].equals("end") ? null : parts[2];
+        System.out.println("\nConversation with " + parts[1] + ":");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        System.out.printf("%-15s %-20s %-20s %-50s%n", "FROM", "TITLE", "TIMESTAMP", "CONTENT");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        for (int i = 3; i + 3 < parts.length; i += 4) {
+            System.out.printf("%-15s %-20s %-20s %-50s%n", parts[i], parts[i + 1], parts[i + 3], parts[i + 2]);
+        }
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        if (conversationCursor != null) {
+            System.out.println("Older messages available, run GETCONVERSATION again.");
+        }
+    }
+
+    /**
+     * Print the unread posts of a channel as a table.
+     * Protocol is GETCHANNEL:::channel, then sender, title, content and timestamp per post.
+     */
+    private void printChannel(String response) {
+        String[] parts = response.split(":::");
+        System.out.println("\nChannel " + parts[1] + ":");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        System.out.printf("%-15s %-20s %-20s %-50s%n", "FROM", "TITLE", "TIMESTAMP", "CONTENT");
+        System.out.println("-------------------------------------------------------------------------------------------------------");
+        int posts = 0;
+        for (int i = 2; i + 3 < parts.length; i += 4) {
+            System.out.printf("%-15s %-20s %-20s %-50s%n", parts[i], parts[i + 1], parts[i + 3], parts[i + 2]);
+            posts++;
+        }
+        if (posts == 0) {
+            System.out.println("No unread posts.");
+        }
+        System.out.println("-------------------------------------------------------------------------------------------------------");
     }
 
     /**
@@ -211,6 +721,7 @@ public class Client {
     }
 
     private void closeClient() {
+        closeLocalStores();
         try {
             if (socket != null) {
                 socket.close();
@@ -0,0 +1,211 @@
+package com.srdc.messageapp.client;
+
+/**
+ * This class keeps a local copy of a user's inbox or outbox on disk so that the client can
+ * show it right after login, before the server answers.
+ * Messages are appended as compact binary records (id, timestamp and the text fields) to one
+ * file per user and box. On open the file is memory-mapped and read in one pass; a record cut
+ * short by a crash is dropped. Only the messages after the sync cursor the server returned last
+ * are fetched afterwards; it is kept in a small file next to the messages. The server repeats
+ * the most recent messages until they have surely committed, which are stored once by id.
+ * Messages past their expiry time are no longer returned, as the server has deleted them too.
+ */
+
+import com.srdc.messageapp.models.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+public class LocalMessageStore implements Closeable {
+
+    private final FileChannel channel;
+    private final Path cursorFile;
+    private long syncCursor;
+    private final TreeMap<Long, Message> messages = new TreeMap<>(); // by id, so in send order
+
+    /**
+     * Opens (or creates) the store of a user's box and loads its messages.
+     *
+     * @param directory the directory the stores are kept in
+     * @param username  the username of the logged in user
+     * @param box       "inbox" or "outbox"
+     * @throws IOException if the file cannot be opened
+     */
+    public LocalMessageStore(Path directory, String username, String box) throws IOException {
+        Files.createDirectories(directory);
+        String name = username.replaceAll("[^A-Za-z0-9_-]", "_") + "-" + box;
+        Path file = directory.resolve(name + ".dat");
+        cursorFile = directory.resolve(name + ".cursor");
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+        try {
+            syncCursor = Files.exists(cursorFile) ? Long.parseLong(Files.readString(cursorFile).trim()) : 0;
+        } catch (NumberFormatException e) {
+            syncCursor = 0; // the whole box is fetched again, stored messages are kept once
+        }
+    }
+
+    /**
+     * @return the stored messages that have not expired, in id order
+     */
+    public synchronized List<Message> getMessages() {
+        List<Message> list = new ArrayList<>(messages.size());
+        for (Message message : messages.values()) {
+            if (!message.isExpired()) {
+                list.add(message);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return the cursor to ask the server for newer messages with, 0 for the whole box
+     */
+    public synchronized long getSyncCursor() {
+        return syncCursor;
+    }
+
+    /**
+     * Keeps the cursor of a sync, after its messages have been added.
+     *
+     * @param cursor the cursor the server returned
+     * @throws IOException if writing the file fails
+     */
+    public synchronized void setSyncCursor(long cursor) throws IOException {
+        if (cursor == syncCursor) {
+            return;
+        }
+        channel.force(false); // the messages below the cursor must not be lost in a crash
+        Path temp = cursorFile.resolveSibling(cursorFile.getFileName() + ".tmp");
+        Files.writeString(temp, Long.toString(cursor));
+        Files.move(temp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncCursor = cursor;
+    }
+
+    /**
+     * Appends the messages that are not stored yet.
+     *
+     * @param received the messages fetched from the server
+     * @return the messages that were new, in the order received
+     * @throws IOException if writing the file fails
+     */
+    public synchronized List<Message> addAll(Collection<Message> received) throws IOException {
+        List<Message> added = new ArrayList<>();
+        for (Message message : received) {
+            if (messages.putIfAbsent(message.getId(), message) == null) {
+                ByteBuffer record = encode(message);
+                while (record.hasRemaining()) {
+                    channel.write(record, channel.size());
+                }
+                added.add(message);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads every complete record of the file and cuts off a trailing partial one.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int valid = 0;
+        try {
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                Message message = decode(buffer.slice(buffer.position(), length));
+                buffer.position(buffer.position() + length);
+                messages.put(message.getId(), message);
+                valid = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Local message cache is damaged, keeping the first " + messages.size() + " messages.");
+        }
+        if (valid < size) {
+            channel.truncate(valid);
+        }
+    }
+
+    /**
+     * Encodes a message as a length prefixed record. The expiry time, if any, is appended after
+     * the text fields, so records written before messages could expire still decode.
+     */
+    private static ByteBuffer encode(Message message) {
+        byte[][] fields = {bytes(message.getSender()), bytes(message.getReceiver()),
+                bytes(message.getTitle()), bytes(message.getContent())};
+        int length = Long.BYTES * 2;
+        for (byte[] field : fields) {
+            length += Integer.BYTES + field.length;
+        }
+        if (message.getExpiresAt() != null) {
+            length += Long.BYTES;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+        buffer.putInt(length);
+        buffer.putLong(message.getId());
+        buffer.putLong(message.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        for (byte[] field : fields) {
+            buffer.putInt(field.length);
+            buffer.put(field);
+        }
+        if (message.getExpiresAt() != null) {
+            buffer.putLong(message.getExpiresAt().toEpochSecond(ZoneOffset.UTC));
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes the body of a record.
+     */
+    private static Message decode(ByteBuffer buffer) {
+        long id = buffer.getLong();
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(buffer.getLong(), 0, ZoneOffset.UTC);
+        String sender = string(buffer);
+        String receiver = string(buffer);
+        String title = string(buffer);
+        String content = string(buffer);
+        LocalDateTime expiresAt = buffer.remaining() >= Long.BYTES
+                ? LocalDateTime.ofEpochSecond(buffer.getLong(), 0, ZoneOffset.UTC) : null;
+        return new Message(id, sender, receiver, title, content, timestamp, expiresAt);
+    }
+
+    private static byte[] bytes(String value) {
+        return (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,435 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class is a non-blocking facade over DatabaseHandler.
+ * Every operation is run on a bounded executor dedicated to database work and returns a
+ * CompletableFuture, so callers can compose database calls without blocking their own thread.
+ * When the executor's queue is full the returned future fails with a RejectedExecutionException
+ * instead of queuing without limit.
+ * Operations are split into bulkheads by workload: small interactive calls, bulk reads of whole
+ * mailboxes and admin work each have their own executor, and every executor thread has its own
+ * database connection. A heavy LISTUSERS or GETOUTBOX therefore cannot delay logins and sends.
+ * Sends go through a striped executor keyed by (sender, receiver), so messages of the same
+ * conversation are stored in order while unrelated conversations are stored in parallel.
+ * Sends are guarded by a circuit breaker: when the database fails or stalls, accepted messages
+ * are written to a local spool file instead and replayed in order once the database is back.
+ * Spooled messages that can never be stored, e.g. to a receiver removed in the meantime, were
+ * already acknowledged, so they are moved to a dead letter spool for an operator to look at.
+ */
+
+import com.srdc.messageapp.models.Message;
+import com.srdc.messageapp.models.User;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+public class AsyncDatabaseHandler {
+
+    private static final long SPOOL_REPLAY_INTERVAL_MILLIS = 1000;
+
+    private final DatabaseHandler dbHandler;
+    private final Map<Workload, ThreadPoolExecutor> executors = new EnumMap<>(Workload.class);
+    private final StripedExecutor writeStripes;
+    private final MessageSpool spool;
+    private final MessageSpool deadLetters;
+    private final CircuitBreaker breaker = new CircuitBreaker("database writes", 3, 5000);
+
+    /**
+     * Constructor for AsyncDatabaseHandler with parameters
+     *
+     * @param dbHandler the database handler the operations are delegated to
+     * @param threads   the number of threads, and so of connections, of each workload
+     * @param queueSize the number of operations that may wait in each workload
+     * @param stripes   the number of ordered write queues for sends, each with its own connection
+     * @param spool       the spool that keeps sends while the database is unavailable
+     * @param deadLetters the spool that keeps the spooled messages that could not be stored
+     */
+    public AsyncDatabaseHandler(DatabaseHandler dbHandler, Map<Workload, Integer> threads, int queueSize, int stripes,
+                                MessageSpool spool, MessageSpool deadLetters) {
+        this.dbHandler = dbHandler;
+        this.spool = spool;
+        this.deadLetters = deadLetters;
+        this.writeStripes = new StripedExecutor("db-write", stripes, Math.max(1, queueSize / stripes),
+                dbHandler::bindDedicatedConnection);
+        for (Workload workload : Workload.values()) {
+            int count = threads.getOrDefault(workload, 1);
+            String name = "db-" + workload.name().toLowerCase();
+            AtomicInteger counter = new AtomicInteger();
+            executors.put(workload, new ThreadPoolExecutor(count, count, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                Thread thread = new Thread(() -> {
+                    dbHandler.bindDedicatedConnection();
+                    runnable.run();
+                }, name + "-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+        Thread replayer = new Thread(() -> {
+            dbHandler.bindDedicatedConnection();
+            replaySpool();
+        }, "spool-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * @see DatabaseHandler#authenticateUser(String, String)
+     */
+    public CompletableFuture<User> authenticateUser(String username, String password) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.authenticateUser(username, password));
+    }
+
+    /**
+     * @see DatabaseHandler#userExists(String)
+     */
+    public CompletableFuture<Boolean> userExists(String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.userExists(username));
+    }
+
+    /**
+     * @see DatabaseHandler#getUserByUsername(String)
+     */
+    public CompletableFuture<User> getUserByUsername(String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.getUserByUsername(username));
+    }
+
+    /**
+     * @see DatabaseHandler#getActiveUser(String)
+     */
+    public CompletableFuture<User> getActiveUser(String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.getActiveUser(username));
+    }
+
+    /**
+     * @see DatabaseHandler#addUser(User, User)
+     */
+    public CompletableFuture<Void> addUser(User admin, User newUser) {
+        return run(Workload.ADMIN, () -> dbHandler.addUser(admin, newUser));
+    }
+
+    /**
+     * @see DatabaseHandler#findExistingUsernames(List)
+     */
+    public CompletableFuture<Set<String>> findExistingUsernames(List<String> usernames) {
+        return call(Workload.ADMIN, () -> dbHandler.findExistingUsernames(usernames));
+    }
+
+    /**
+     * @see DatabaseHandler#copyUsers(User, List)
+     */
+    public CompletableFuture<Long> copyUsers(User admin, List<User> users) {
+        return call(Workload.ADMIN, () -> dbHandler.copyUsers(admin, users));
+    }
+
+    /**
+     * @see DatabaseHandler#removeUser(User, String)
+     */
+    public CompletableFuture<Void> removeUser(User admin, String username) {
+        return run(Workload.ADMIN, () -> dbHandler.removeUser(admin, username));
+    }
+
+    /**
+     * @see DatabaseHandler#updateUser(User, User)
+     */
+    public CompletableFuture<Void> updateUser(User admin, User updatedUser) {
+        return run(Workload.ADMIN, () -> dbHandler.updateUser(admin, updatedUser));
+    }
+
+    /**
+     * Checks that the receiver exists and stores the message, both on the write stripe of the
+     * conversation. Two sends from the same sender to the same receiver are therefore stored in
+     * the order they were submitted.
+     * If the database fails, or the circuit is open, the message is spooled to disk instead. While
+     * any message is spooled later sends are spooled too, so the replay keeps their order.
+     *
+     * @param message         the message to send
+     * @param clientMessageId the id the client generated for the message, null if none
+     * @return the outcome of the send
+     */
+    public CompletableFuture<SendResult> sendMessage(Message message, String clientMessageId) {
+        return writeStripes.submit(Objects.hash(message.getSender(), message.getReceiver()), () -> {
+            if (spool.isEmpty() && breaker.allowRequest()) {
+                try {
+                    SendResult result;
+                    if (!dbHandler.checkUserExists(message.getReceiver())) {
+                        result = SendResult.UNKNOWN_RECEIVER;
+                    } else {
+                        result = dbHandler.saveMessage(message, clientMessageId) ? SendResult.STORED : SendResult.DUPLICATE;
+                    }
+                    breaker.recordSuccess();
+                    return result;
+                } catch (SQLException e) {
+                    if (isConstraintViolation(e)) {
+                        breaker.recordSuccess(); // the database answered, the message is at fault
+                        throw e;
+                    }
+                    breaker.recordFailure();
+                    System.err.println("Error saving message, spooling it: " + e.getMessage());
+                }
+            }
+            spool.append(message, clientMessageId);
+            return SendResult.SPOOLED;
+        });
+    }
+
+    /**
+     * Stores a channel post on the write stripe of the (sender, channel) pair, so the posts of a
+     * sender appear in the channel in the order they were submitted.
+     *
+     * @see DatabaseHandler#postToChannel(Message)
+     */
+    public CompletableFuture<Boolean> postToChannel(Message post) {
+        return writeStripes.submit(Objects.hash(post.getSender(), post.getReceiver()), () -> dbHandler.postToChannel(post));
+    }
+
+    /**
+     * @see DatabaseHandler#joinChannel(String, String)
+     */
+    public CompletableFuture<Boolean> joinChannel(String channel, String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.joinChannel(channel, username));
+    }
+
+    /**
+     * @see DatabaseHandler#readChannel(String, String, int)
+     */
+    public CompletableFuture<List<Message>> readChannel(String channel, String username, int limit) {
+        return call(Workload.BULK_READ, () -> dbHandler.readChannel(channel, username, limit));
+    }
+
+    /**
+     * @see DatabaseHandler#getMessages(String, boolean)
+     */
+    public CompletableFuture<List<Message>> getMessages(String username, boolean isInbox) {
+        return call(Workload.BULK_READ, () -> dbHandler.getMessages(username, isInbox));
+    }
+
+    /**
+     * @see DatabaseHandler#getMessagesSince(String, boolean, long)
+     */
+    public CompletableFuture<DatabaseHandler.SyncPage> getMessagesSince(String username, boolean isInbox, long afterId) {
+        return call(Workload.BULK_READ, () -> dbHandler.getMessagesSince(username, isInbox, afterId));
+    }
+
+    /**
+     * @see DatabaseHandler#getConversation(String, String, LocalDateTime, long, int)
+     */
+    public CompletableFuture<List<Message>> getConversation(String username, String other, LocalDateTime beforeTimestamp,
+                                                            long beforeId, int limit) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.getConversation(username, other, beforeTimestamp, beforeId, limit));
+    }
+
+    /**
+     * @see DatabaseHandler#getRecentInbox(String)
+     */
+    public CompletableFuture<List<Message>> getRecentInbox(String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.getRecentInbox(username));
+    }
+
+    /**
+     * @see DatabaseHandler#listUsers(User, String, String, String, int, Consumer)
+     */
+    public CompletableFuture<String> listUsers(User admin, String after, String column, String prefix, int limit,
+                                               Consumer<User> consumer) {
+        return call(Workload.ADMIN, () -> dbHandler.listUsers(admin, after, column, prefix, limit, consumer));
+    }
+
+    /**
+     * @see DatabaseHandler#canReadAttachment(String, String)
+     */
+    public CompletableFuture<Boolean> canReadAttachment(String username, String hash) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.canReadAttachment(username, hash));
+    }
+
+    /**
+     * @see DatabaseHandler#getLastSeen(String)
+     */
+    public CompletableFuture<LocalDateTime> getLastSeen(String username) {
+        return call(Workload.INTERACTIVE, () -> dbHandler.getLastSeen(username));
+    }
+
+    /**
+     * @see DatabaseHandler#getStats(User, LocalDate, LocalDate, int)
+     */
+    public CompletableFuture<String> getStats(User admin, LocalDate from, LocalDate to, int top) {
+        return call(Workload.ADMIN, () -> dbHandler.getStats(admin, from, to, top));
+    }
+
+    /**
+     * @param workload the workload
+     * @return how long the oldest queued operation of the workload has been waiting, in milliseconds
+     */
+    public long getQueueWaitMillis(Workload workload) {
+        return StripedExecutor.QueuedTask.oldestWaitMillis(executors.get(workload));
+    }
+
+    /**
+     * Returns the queue wait of the work every client needs, logins and other interactive calls
+     * and sends. Bulk reads and admin work are left out, their bulkheads may be busy without
+     * slowing anyone else down.
+     *
+     * @return how long the oldest queued interactive call or send has been waiting, in milliseconds
+     */
+    public long getQueueWaitMillis() {
+        return Math.max(getQueueWaitMillis(Workload.INTERACTIVE), writeStripes.getQueueWaitMillis());
+    }
+
+    /**
+     * Stops accepting operations and waits for the queued ones to finish, so that accepted sends
+     * are stored before the server exits. Sends still queued after the timeout are lost unless
+     * they were spooled.
+     *
+     * @param timeoutMillis how long to wait for the queued operations
+     * @return true if all of them finished in time
+     */
+    public boolean shutdown(long timeoutMillis) {
+        executors.values().forEach(ExecutorService::shutdown);
+        writeStripes.shutdown();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (ExecutorService executor : executors.values()) {
+                if (!executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return writeStripes.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Replays the spool whenever it has messages and the circuit lets a call through.
+     */
+    @SuppressWarnings("BusyWait")
+    private void replaySpool() {
+        while (true) {
+            try {
+                Thread.sleep(SPOOL_REPLAY_INTERVAL_MILLIS);
+                if (spool.isEmpty() || !breaker.allowRequest()) {
+                    continue;
+                }
+                try {
+                    int replayed = spool.replay(this::storeSpooled);
+                    breaker.recordSuccess();
+                    System.out.println(replayed + " spooled messages stored.");
+                } catch (SQLException | IOException e) {
+                    breaker.recordFailure();
+                    System.err.println("Error replaying spooled messages, " + spool.getPending() + " left: " + e.getMessage());
+                    // the next attempt starts on a fresh connection, not on one that died with the database
+                    dbHandler.reopenDedicatedConnection();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stores a replayed message. Messages that can never be stored, e.g. to a receiver that does
+     * not exist, are moved to the dead letter spool so that they do not block the rest of the spool.
+     */
+    private void storeSpooled(Message message, String clientMessageId) throws SQLException {
+        try {
+            if (!dbHandler.checkUserExists(message.getReceiver())) {
+                deadLetter(message, clientMessageId, "unknown receiver");
+                return;
+            }
+            dbHandler.saveMessage(message, clientMessageId);
+        } catch (SQLException e) {
+            if (!isConstraintViolation(e)) {
+                throw e;
+            }
+            deadLetter(message, clientMessageId, e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps a spooled message that cannot be stored. The sender was told it was accepted, so it
+     * is logged and written to the dead letter spool instead of being dropped.
+     */
+    private void deadLetter(Message message, String clientMessageId, String reason) {
+        System.err.println("Spooled message " + clientMessageId + " from " + message.getSender() + " to "
+                + message.getReceiver() + " cannot be stored (" + reason + "), moving it to the dead letters.");
+        try {
+            deadLetters.append(message, clientMessageId);
+        } catch (IOException e) {
+            System.err.println("Error writing dead letter, message \"" + message.getTitle() + "\" from "
+                    + message.getSender() + " to " + message.getReceiver() + " is lost: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return true if the database rejected the statement itself rather than being unavailable
+     */
+    private static boolean isConstraintViolation(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    /**
+     * Runs an operation with a result on the executor of its workload.
+     */
+    private <T> CompletableFuture<T> call(Workload workload, Callable<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executors.get(workload).execute(new StripedExecutor.QueuedTask(() -> {
+                try {
+                    future.complete(operation.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs an operation without a result on the executor of its workload.
+     */
+    private CompletableFuture<Void> run(Workload workload, Operation operation) {
+        return call(workload, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Classes of database work that are isolated from each other.
+     */
+    public enum Workload {
+        /** small per-request calls such as logins and receiver checks */
+        INTERACTIVE,
+        /** reads of whole inboxes / outboxes */
+        BULK_READ,
+        /** admin user management and listings */
+        ADMIN
+    }
+
+    /**
+     * Outcome of {@link #sendMessage(Message, String)}.
+     */
+    public enum SendResult {
+        STORED, DUPLICATE, UNKNOWN_RECEIVER, SPOOLED
+    }
+
+    /**
+     * A database operation that may throw but has no result.
+     */
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,269 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class keeps message attachments on local disk, addressed by the SHA-256 hash of their
+ * content. An upload is written chunk by chunk to a temporary file while its hash is computed,
+ * and then moved to blobs/ab/abcd... under its hash; if a blob with that hash is already stored
+ * the upload is dropped, so a file sent to many users is stored once.
+ * Messages only reference the hash, and downloads are copied from the blob file to the socket by
+ * the kernel (FileChannel.transferTo), so attachments never pass through the heap or the database.
+ * Blobs that no message references, e.g. uploads that were never sent or whose messages expired
+ * or were removed, are deleted by a sweeper once they have not been uploaded for a grace period.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+public class BlobStore {
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path root;
+    private final Path uploads;
+
+    /**
+     * Opens (or creates) the blob store and drops the uploads a crash left unfinished.
+     *
+     * @param root the directory the blobs are kept in
+     * @throws IOException if the directories cannot be created
+     */
+    public BlobStore(Path root) throws IOException {
+        this.root = root;
+        this.uploads = root.resolve("uploads");
+        Files.createDirectories(uploads);
+        try (DirectoryStream<Path> unfinished = Files.newDirectoryStream(uploads)) {
+            for (Path file : unfinished) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * @param hash a string sent by a client as a blob hash
+     * @return true if the string is a lower case hex SHA-256 hash
+     */
+    public static boolean isValidHash(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    /**
+     * Starts an upload.
+     *
+     * @param maxBytes the size above which the upload is refused
+     * @return the upload, to be finished or aborted
+     * @throws IOException if the temporary file cannot be created
+     */
+    public Upload begin(long maxBytes) throws IOException {
+        return new Upload(Files.createTempFile(uploads, "upload", ".part"), maxBytes);
+    }
+
+    /**
+     * @param hash the hash of a blob
+     * @return true if the blob is stored
+     */
+    public boolean contains(String hash) {
+        return isValidHash(hash) && Files.isRegularFile(path(hash));
+    }
+
+    /**
+     * @param hash the hash of a stored blob
+     * @return the size of the blob in bytes
+     * @throws IOException if the blob is not stored
+     */
+    public long size(String hash) throws IOException {
+        return Files.size(path(hash));
+    }
+
+    /**
+     * Copies a blob to a channel without reading it into the heap.
+     *
+     * @param hash   the hash of a stored blob
+     * @param target the channel to copy to, e.g. the client's socket
+     * @return the number of bytes copied
+     * @throws IOException if the blob cannot be read or the target cannot be written
+     */
+    public long transferTo(String hash, WritableByteChannel target) throws IOException {
+        try (FileChannel blob = FileChannel.open(path(hash), StandardOpenOption.READ)) {
+            long size = blob.size();
+            long position = 0;
+            while (position < size) {
+                position += blob.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Starts a daemon thread that deletes the unreferenced blobs every period.
+     *
+     * @param periodMillis the time between two sweeps
+     * @param graceMillis  how long after its last upload a blob is kept even if no message
+     *                     references it, which gives the client time to send the message
+     * @param threadSetup  run once on the sweeping thread before it starts
+     * @param referenced   tells whether a message references a hash, true when that is not known
+     */
+    public void startSweeping(long periodMillis, long graceMillis, Runnable threadSetup, Predicate<String> referenced) {
+        Thread sweeper = new Thread(() -> {
+            threadSetup.run();
+            while (true) {
+                try {
+                    Thread.sleep(periodMillis);
+                    int deleted = sweep(graceMillis, referenced);
+                    if (deleted > 0) {
+                        System.out.println("Deleted " + deleted + " unreferenced attachments.");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Error sweeping attachments: " + e.getMessage());
+                }
+            }
+        }, "blob-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Deletes the blobs that were last uploaded over the grace period ago and that no message
+     * references. The upload time is checked again right before a delete, so a blob uploaded
+     * again while the sweep asked the database is kept.
+     *
+     * @param graceMillis how long after its last upload a blob is kept
+     * @param referenced  tells whether a message references a hash
+     * @return the number of blobs deleted
+     * @throws IOException if the blob directories cannot be listed
+     */
+    int sweep(long graceMillis, Predicate<String> referenced) throws IOException {
+        int deleted = 0;
+        try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, path -> path.getFileName().toString().length() == 2)) {
+            for (Path directory : directories) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(directory)) {
+                    for (Path blob : blobs) {
+                        String hash = blob.getFileName().toString();
+                        if (isValidHash(hash) && isPastGrace(blob, graceMillis) && !referenced.test(hash)
+                                && isPastGrace(blob, graceMillis) && Files.deleteIfExists(blob)) {
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return true if the blob was last uploaded more than the grace period ago
+     */
+    private static boolean isPastGrace(Path blob, long graceMillis) throws IOException {
+        return Files.getLastModifiedTime(blob).toMillis() < System.currentTimeMillis() - graceMillis;
+    }
+
+    /**
+     * @return the file of a blob, spread over 256 directories by the first byte of the hash
+     */
+    private Path path(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * An attachment being uploaded in chunks.
+     */
+    public class Upload {
+
+        private final Path file;
+        private final long maxBytes;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size;
+
+        private Upload(Path file, long maxBytes) throws IOException {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                channel.close();
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        /**
+         * Appends a chunk to the upload.
+         *
+         * @param chunk the bytes of the chunk
+         * @throws IOException if the upload gets too large or the chunk cannot be written
+         */
+        public void write(byte[] chunk) throws IOException {
+            if (size + chunk.length > maxBytes) {
+                throw new IOException("Attachment is larger than " + maxBytes + " bytes");
+            }
+            digest.update(chunk);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            size += chunk.length;
+        }
+
+        /**
+         * @return the number of bytes uploaded so far
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Forces the upload to disk and stores it under its hash, unless the same content is
+         * already stored.
+         *
+         * @return the hash of the upload
+         * @throws IOException if the blob cannot be stored
+         */
+        public String finish() throws IOException {
+            String hash = HexFormat.of().formatHex(digest.digest());
+            channel.force(false);
+            channel.close();
+            Path target = path(hash);
+            if (Files.exists(target)) {
+                Files.delete(file);
+                // uploaded again, so the grace period before a sweep may delete it starts over
+                Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+                return hash;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(file); // stored by a concurrent upload of the same content
+            }
+            return hash;
+        }
+
+        /**
+         * Drops the upload.
+         */
+        public void abort() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("Error dropping attachment upload: " + e.getMessage());
+            }
+        }
+    }
+}
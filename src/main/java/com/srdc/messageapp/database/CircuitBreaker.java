@@ -0,0 +1,84 @@
+package com.srdc.messageapp.database;
+
+/**
+ * A circuit breaker for calls to the database.
+ * After a number of consecutive failures the circuit opens and callers stop trying the database
+ * for a while. Once that time has passed a single trial call is let through (half open); if it
+ * succeeds the circuit closes again, otherwise it stays open for another period.
+ */
+
+public class CircuitBreaker {
+
+    /**
+     * States of the circuit.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * Constructor for CircuitBreaker with parameters
+     *
+     * @param name             the name used in the log lines
+     * @param failureThreshold the number of consecutive failures that open the circuit
+     * @param openMillis       how long the circuit stays open before a trial call
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks whether a call may be made. When the open period is over the first caller gets the
+     * trial call and must report its outcome with recordSuccess or recordFailure.
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Reports a successful call, which closes the circuit.
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("Circuit " + name + " closed.");
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Reports a failed call, which opens the circuit after enough failures or a failed trial.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                System.err.println("Circuit " + name + " opened after " + failures + " failures.");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the current state of the circuit
+     */
+    public synchronized State getState() {
+        return state;
+    }
+}
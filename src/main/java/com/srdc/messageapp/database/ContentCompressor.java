@@ -0,0 +1,118 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class deflates long message bodies and keeps count of what it saves and what it costs.
+ * Text shorter than the threshold is left alone, as is text that does not get smaller, so short
+ * messages pay nothing. One instance compresses bodies before they are stored, another one
+ * compresses inbox transfers for connections that asked for it; each keeps its own statistics.
+ * Deflaters and inflaters hold native memory, so every thread reuses its own.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class ContentCompressor {
+
+    private final String name;
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[8192]);
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    /**
+     * Constructor for ContentCompressor with parameters
+     *
+     * @param name      the name used in the statistics
+     * @param threshold the length in characters from which text is compressed
+     * @param level     the deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     */
+    public ContentCompressor(String name, int threshold, int level) {
+        this.name = name;
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    /**
+     * Deflates a text if it is long enough and gets smaller.
+     *
+     * @param text the text to compress, may be null
+     * @return the deflated UTF-8 bytes of the text, or null if it is left uncompressed
+     */
+    public byte[] compress(String text) {
+        if (text == null || text.length() < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] input = text.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2);
+        byte[] buffer = buffers.get();
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+        compressNanos.addAndGet(System.nanoTime() - start);
+        if (output.size() >= input.length) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(input.length);
+        bytesOut.addAndGet(output.size());
+        return output.toByteArray();
+    }
+
+    /**
+     * Inflates a text deflated by compress.
+     *
+     * @param data the deflated bytes
+     * @return the text
+     * @throws IllegalArgumentException if the bytes are not valid deflate data
+     */
+    public String decompress(byte[] data) {
+        long start = System.nanoTime();
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+        byte[] buffer = buffers.get();
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed content");
+                }
+                output.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed content", e);
+        } finally {
+            decompressNanos.addAndGet(System.nanoTime() - start);
+        }
+        return output.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the compression ratio and the time spent compressing and decompressing
+     */
+    public String getStats() {
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        return String.format("%s compression: %d compressed (%d left as is), %d KB -> %d KB (%.1f%%), "
+                        + "%d ms compressing, %d ms decompressing",
+                name, compressed.get(), skipped.get(), in / 1024, out / 1024, in == 0 ? 100.0 : out * 100.0 / in,
+                compressNanos.get() / 1_000_000, decompressNanos.get() / 1_000_000);
+    }
+}
@@ -0,0 +1,62 @@
+package com.srdc.messageapp.database;
+
+/**
+ * JDK Flight Recorder event for a single DatabaseHandler operation.
+ * It records which operation ran, how many rows it read or changed and how long it took.
+ * When no recording is active, starting and finishing the event costs next to nothing.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.srdc.messageapp.Database")
+@Label("Database Operation")
+@Category({"Message App", "Database"})
+@Description("A DatabaseHandler operation")
+@StackTrace(false)
+public class DatabaseEvent extends Event {
+
+    @Label("Operation")
+    private final String operation;
+
+    @Label("Rows")
+    @Description("Rows read or changed by the operation")
+    private long rows;
+
+    private DatabaseEvent(String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Creates the event of an operation and starts its timer.
+     *
+     * @param operation the label of the operation, e.g. the DatabaseHandler method
+     * @return the started event
+     */
+    public static DatabaseEvent start(String operation) {
+        DatabaseEvent event = new DatabaseEvent(operation);
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param rows the number of rows read or changed
+     */
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Stops the timer and writes the event if it passes the recording's settings.
+     */
+    public void finish() {
+        end();
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+}
@@ -10,19 +10,80 @@ package com.srdc.messageapp.database;
 
 import com.srdc.messageapp.models.Message;
 import com.srdc.messageapp.models.User;
+import org.postgresql.PGConnection;
 
 import java.sql.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 
 @SuppressWarnings("ALL")
 public class DatabaseHandler {
 
-    private Connection connection;
+    // kinds of cache invalidations sent to the other nodes, see applyInvalidation
+    public static final String INVALIDATE_INBOX = "inbox";
+    public static final String INVALIDATE_SENDER = "sender";
+    public static final String INVALIDATE_ALL = "all";
+    // hides messages that expired but were not deleted by the expiry wheel yet
+    private static final String NOT_EXPIRED = " AND (expires_at IS NULL OR expires_at > LOCALTIMESTAMP)";
+    // a stalled database fails a send after this long instead of holding its thread
+    private static final int WRITE_TIMEOUT_SECONDS = 5;
+    // bodies from this many characters on are stored deflated in content_z instead of content
+    private static final ContentCompressor STORAGE_COMPRESSION =
+            new ContentCompressor("Storage", 1024, Deflater.DEFAULT_COMPRESSION);
+    // a message id taken this long ago is committed or abandoned, and visible on the replicas
+    private static final long SYNC_SETTLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long SYNC_SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // a primary connection is pinged at most this often, and reopened if the ping fails
+    private static final long VALIDATE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int VALIDATE_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private volatile Connection connection;
+    private volatile long connectionValidated = System.nanoTime();
+    // connections of the database threads that were given their own, see bindDedicatedConnection
+    private final ThreadLocal<Connection> dedicatedConnection = new ThreadLocal<>();
+    private final ThreadLocal<long[]> dedicatedValidated = ThreadLocal.withInitial(() -> new long[1]);
+    private final UserRemovalWorker removalWorker = new UserRemovalWorker(this);
+    private final InboxCache inboxCache = new InboxCache(50, 64L * 1024 * 1024);
+    private volatile BiConsumer<String, String> invalidationListener = (kind, username) -> {
+    };
+    private final MessageStats messageStats = new MessageStats();
+    private final ExpiryWheel expiryWheel;
+    private final ReplicaRouter replicas;
+    private final MessageShards shards;
+    // queries every shard in parallel for outbox reads, null with a single shard
+    private final ExecutorService shardReaders;
+    // {System.nanoTime(), last id taken from the message sequence}, oldest first, see settledMessageId
+    private final ArrayDeque<long[]> idSamples = new ArrayDeque<>();
 
     /**
      * Constructor for DatabaseHandler with parameters
@@ -34,8 +95,198 @@ public class DatabaseHandler {
      */
 
     public DatabaseHandler(String url, String user, String password) throws Exception {
+        this(url, List.of(), user, password);
+    }
+
+    /**
+     * Constructor for DatabaseHandler with read replicas. Writes go to the primary, read-only
+     * queries are spread over the replicas.
+     *
+     * @param url         the URL of the primary database
+     * @param replicaUrls the URLs of the read replicas, may be empty
+     * @param user        the username for the database connections
+     * @param password    the password for the database connections
+     * @throws Exception if an error occurs during database connection
+     */
+    public DatabaseHandler(String url, List<String> replicaUrls, String user, String password) throws Exception {
+        this(url, replicaUrls, List.of(), user, password);
+    }
+
+    /**
+     * Constructor for DatabaseHandler with read replicas and message shards. Messages are stored
+     * on the shard of their receiver, the primary being the first shard; everything else stays
+     * on the primary.
+     *
+     * @param url         the URL of the primary database
+     * @param replicaUrls the URLs of the read replicas of the primary, may be empty
+     * @param shardUrls   the URLs of the message shards next to the primary, may be empty
+     * @param user        the username for the database connections
+     * @param password    the password for the database connections
+     * @throws Exception if an error occurs during database connection
+     */
+    public DatabaseHandler(String url, List<String> replicaUrls, List<String> shardUrls, String user, String password) throws Exception {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        replicas = new ReplicaRouter(replicaUrls, user, password);
+        shards = new MessageShards(shardUrls, user, password);
+        if (shards.size() > 1) {
+            AtomicInteger counter = new AtomicInteger();
+            shardReaders = Executors.newFixedThreadPool(shards.size(), runnable -> {
+                Thread thread = new Thread(() -> {
+                    bindDedicatedConnection();
+                    runnable.run();
+                }, "shard-read-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            shardReaders = null;
+        }
         connection = DriverManager.getConnection(url, user, password);
         System.out.println("Database connection successful.");
+        expiryWheel = new ExpiryWheel("message-expiry", this::bindDedicatedConnection, this::deleteExpiredMessages);
+    }
+
+    /**
+     * Opens a connection that only the calling thread will use. Meant to be called once by each
+     * thread of a database executor, so that every executor gets its own share of connections and
+     * slow work on one executor does not queue the others behind a shared connection.
+     * If the connection cannot be opened, the thread keeps using the shared connection.
+     */
+    public void bindDedicatedConnection() {
+        try {
+            dedicatedConnection.set(DriverManager.getConnection(url, user, password));
+            dedicatedValidated.get()[0] = System.nanoTime();
+        } catch (SQLException e) {
+            System.err.println("Error opening dedicated connection, using the shared one: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the dedicated connection of the calling thread and opens a new one, e.g. before the
+     * spool is replayed again after a failed replay, so the retry does not reuse a connection
+     * that died with the database.
+     */
+    public void reopenDedicatedConnection() {
+        Connection old = dedicatedConnection.get();
+        dedicatedConnection.remove();
+        closeQuietly(old);
+        bindDedicatedConnection();
+    }
+
+    /**
+     * Returns the dedicated connection of the calling thread, or the shared connection. A
+     * connection that is closed, or whose ping fails (at most one ping per second), is replaced
+     * by a new one, so that the server recovers from a database restart or a network reset.
+     * If the database cannot be reached the old connection is returned and the query fails.
+     *
+     * @return the dedicated connection of the calling thread, or the shared connection
+     */
+    private Connection connection() {
+        Connection dedicated = dedicatedConnection.get();
+        if (dedicated != null) {
+            long[] validated = dedicatedValidated.get();
+            if (isUsable(dedicated, validated[0])) {
+                return dedicated;
+            }
+            Connection reopened = reopen(dedicated);
+            validated[0] = System.nanoTime();
+            if (reopened != dedicated) {
+                dedicatedConnection.set(reopened);
+            }
+            return reopened;
+        }
+        Connection shared = connection;
+        if (isUsable(shared, connectionValidated)) {
+            return shared;
+        }
+        synchronized (this) {
+            if (connection == shared) {
+                connection = reopen(shared);
+            }
+            connectionValidated = System.nanoTime();
+            return connection;
+        }
+    }
+
+    /**
+     * @return false if the connection is closed, or if it was last validated over a second ago
+     * and does not answer a ping now
+     */
+    private boolean isUsable(Connection connection, long validatedAt) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            return System.nanoTime() - validatedAt < VALIDATE_NANOS || connection.isValid(VALIDATE_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a new connection to the primary in place of a broken one.
+     *
+     * @return the new connection, or the broken one if the primary cannot be reached
+     */
+    private Connection reopen(Connection broken) {
+        try {
+            Connection reopened = DriverManager.getConnection(url, user, password);
+            closeQuietly(broken);
+            System.out.println("Reconnected to the database.");
+            return reopened;
+        } catch (SQLException e) {
+            System.err.println("Error reconnecting to the database: " + e.getMessage());
+            return broken;
+        }
+    }
+
+    /**
+     * Closes a connection, ignoring errors.
+     */
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+
+    /**
+     * Picks the connection of a read-only query: a replica, or the primary if the user has just
+     * written or no replica is available.
+     *
+     * @param username the user whose own writes the read must see, null if none
+     * @return the connection to run the query on
+     */
+    private Connection readConnection(String username) {
+        Connection replica = replicas.connection(username, dedicatedConnection.get() != null);
+        return replica != null ? replica : connection();
+    }
+
+    /**
+     * @param shard the shard number
+     * @return the connection of the calling thread to a message shard
+     * @throws SQLException if the connection to the shard cannot be opened
+     */
+    private Connection shardConnection(int shard) throws SQLException {
+        return shard == 0 ? connection() : shards.connection(shard, dedicatedConnection.get() != null);
+    }
+
+    /**
+     * Picks the connection of a read-only query on a message shard. Only the primary has
+     * replicas, see readConnection.
+     *
+     * @param shard    the shard number
+     * @param username the user whose own writes the read must see, null if none
+     * @return the connection to run the query on
+     * @throws SQLException if the connection to the shard cannot be opened
+     */
+    private Connection shardReadConnection(int shard, String username) throws SQLException {
+        return shard == 0 ? readConnection(username) : shards.connection(shard, dedicatedConnection.get() != null);
     }
 
     /**
@@ -66,13 +317,24 @@ public class DatabaseHandler {
      * Executer function for dbs.sql file if needed
      */
     private void executeSqlScript(String filePath) {
+        executeSqlScript(connection(), filePath);
+    }
+
+    /**
+     * Executes the statements of an SQL script on a connection, e.g. shard.sql on a new shard.
+     *
+     * @param connection the connection to run the script on
+     * @param filePath   the path of the script
+     */
+    static void executeSqlScript(Connection connection, String filePath) {
         try (BufferedReader br = new BufferedReader(new FileReader(filePath));
              Statement stmt = connection.createStatement()) {
 
             StringBuilder sb = new StringBuilder();
             String line;
             while ((line = br.readLine()) != null) {
-                sb.append(line);
+                // keeps a comment line from swallowing the statement after it
+                sb.append(line).append('\n');
                 if (line.trim().endsWith(";")) {
                     stmt.execute(sb.toString());
                     sb.setLength(0);
@@ -93,12 +355,14 @@ public class DatabaseHandler {
      * @return the User object if authentication is successful, null otherwise
      */
     public User authenticateUser(String username, String password) {
-        String query = "SELECT * FROM users WHERE username = ? AND password = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        DatabaseEvent event = DatabaseEvent.start("authenticateUser");
+        String query = "SELECT * FROM users WHERE username = ? AND password = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
             stmt.setString(1, username);
             stmt.setString(2, password);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
+                    event.setRows(1);
                     return new User(
                             rs.getString("username"),
                             rs.getString("name"),
@@ -113,6 +377,8 @@ public class DatabaseHandler {
             }
         } catch (SQLException e) {
             System.err.println("Error authenticating user: " + e.getMessage());
+        } finally {
+            event.finish();
         }
         return null;
     }
@@ -124,18 +390,38 @@ public class DatabaseHandler {
      * @return true if the user exists, false otherwise
      */
     public boolean userExists(String username) {
-        String query = "SELECT 1 FROM users WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, username);
-            try (ResultSet rs = stmt.executeQuery()) {
-                return rs.next();
-            }
+        try {
+            return checkUserExists(username);
         } catch (SQLException e) {
             System.err.println("Error checking user existence: " + e.getMessage());
         }
         return false;
     }
 
+    /**
+     * Checks if a user with the given username exists, reporting database errors to the caller,
+     * e.g. so that a send can tell an unknown receiver from an unavailable database.
+     *
+     * @param username the username to check
+     * @return true if the user exists, false otherwise
+     * @throws SQLException if the query fails or times out
+     */
+    boolean checkUserExists(String username) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("userExists");
+        String query = "SELECT 1 FROM users WHERE username = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            stmt.setQueryTimeout(WRITE_TIMEOUT_SECONDS);
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                boolean exists = rs.next();
+                event.setRows(exists ? 1 : 0);
+                return exists;
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
     /**
      * Adds a new user to the database.
      *
@@ -147,8 +433,10 @@ public class DatabaseHandler {
         if (!admin.isAdmin()) {
             throw new Exception("Only admins can add users.");
         }
+        DatabaseEvent event = DatabaseEvent.start("addUser");
+        replicas.recordWrite(admin.getUsername());
         String query = "INSERT INTO users (username, name, surname, birthdate, gender, email, location, password, isAdmin) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
             stmt.setString(1, newUser.getUsername());
             stmt.setString(2, newUser.getName());
             stmt.setString(3, newUser.getSurname());
@@ -159,6 +447,7 @@ public class DatabaseHandler {
             stmt.setString(8, newUser.getPassword());
             stmt.setBoolean(9, newUser.isAdmin());
             int rowsAffected = stmt.executeUpdate();
+            event.setRows(rowsAffected);
             if (rowsAffected > 0) {
                 System.out.println("User added successfully.");
             } else {
@@ -166,11 +455,84 @@ public class DatabaseHandler {
             }
         } catch (SQLException e) {
             System.err.println("Error adding user: " + e.getMessage());
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns which of the given usernames are already taken.
+     *
+     * @param usernames the usernames to check
+     * @return the subset of usernames that exist in the database
+     * @throws SQLException if the query fails
+     */
+    public Set<String> findExistingUsernames(List<String> usernames) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("findExistingUsernames");
+        Set<String> existing = new HashSet<>();
+        String query = "SELECT username FROM users WHERE username = ANY (?)";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            stmt.setArray(1, connection().createArrayOf("varchar", usernames.toArray()));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString("username"));
+                }
+            }
+        } finally {
+            event.setRows(existing.size());
+            event.finish();
+        }
+        return existing;
+    }
+
+    /**
+     * Bulk loads users with the PostgreSQL COPY protocol. The chunk is loaded as a whole,
+     * so it either succeeds completely or not at all.
+     *
+     * @param admin the admin user importing the users
+     * @param users the users to load
+     * @return the number of users loaded
+     * @throws Exception if the admin user is not an admin or the COPY fails
+     */
+    public long copyUsers(User admin, List<User> users) throws Exception {
+        if (!admin.isAdmin()) {
+            throw new Exception("Only admins can import users.");
+        }
+        StringBuilder csv = new StringBuilder();
+        for (User user : users) {
+            csv.append(csvField(user.getUsername())).append(',')
+                    .append(csvField(user.getName())).append(',')
+                    .append(csvField(user.getSurname())).append(',')
+                    .append(user.getBirthdate()).append(',')
+                    .append(csvField(user.getGender())).append(',')
+                    .append(csvField(user.getEmail())).append(',')
+                    .append(csvField(user.getLocation())).append(',')
+                    .append(csvField(user.getPassword())).append(',')
+                    .append(user.isAdmin()).append('\n');
         }
+        String query = "COPY users (username, name, surname, birthdate, gender, email, location, password, isAdmin) FROM STDIN WITH (FORMAT csv)";
+        DatabaseEvent event = DatabaseEvent.start("copyUsers");
+        replicas.recordWrite(admin.getUsername());
+        try {
+            long rows = connection().unwrap(PGConnection.class).getCopyAPI().copyIn(query, new StringReader(csv.toString()));
+            event.setRows(rows);
+            return rows;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Quotes a value for the CSV format of COPY.
+     */
+    private static String csvField(String value) {
+        return '"' + value.replace("\"", "\"\"") + '"';
     }
 
     /**
-     * Removes a user from the database.
+     * Removes a user from the database. The user is tombstoned right away, which rejects
+     * their logins and incoming messages, and the rest of the removal is done in the
+     * background by the {@link UserRemovalWorker}.
      *
      * @param admin    the admin user removing the user
      * @param username the username of the user to remove
@@ -180,33 +542,175 @@ public class DatabaseHandler {
         if (!admin.isAdmin()) {
             throw new Exception("Only admins can remove users.");
         }
-        String updateSenderQuery = "UPDATE messages SET sender = NULL WHERE sender = ?";
-        String updateReceiverQuery = "UPDATE messages SET receiver = NULL WHERE receiver = ?";
-        String deleteUserQuery = "DELETE FROM users WHERE username = ?";
+        DatabaseEvent event = DatabaseEvent.start("removeUser");
+        replicas.recordWrite(admin.getUsername());
+        String query = "UPDATE users SET removed_at = NOW() WHERE username = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            stmt.setString(1, username);
+            int rowsAffected = stmt.executeUpdate();
+            event.setRows(rowsAffected);
+            if (rowsAffected == 0) {
+                throw new SQLException("User not found or already removed.");
+            }
+            System.out.println("User tombstoned.");
+        } catch (SQLException e) {
+            System.err.println("Error removing user: " + e.getMessage());
+            throw e;
+        } finally {
+            event.finish();
+        }
+        removalWorker.submit(username);
+    }
 
-        try (PreparedStatement updateSenderStmt = connection.prepareStatement(updateSenderQuery);
-             PreparedStatement updateReceiverStmt = connection.prepareStatement(updateReceiverQuery);
-             PreparedStatement deleteUserStmt = connection.prepareStatement(deleteUserQuery)) {
+    /**
+     * Queues the removals that were tombstoned but not finished, e.g. because the server stopped.
+     */
+    public void resumePendingRemovals() {
+        DatabaseEvent event = DatabaseEvent.start("resumePendingRemovals");
+        String query = "SELECT username FROM users WHERE removed_at IS NOT NULL";
+        int count = 0;
+        try (Statement stmt = connection().createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            while (rs.next()) {
+                removalWorker.submit(rs.getString("username"));
+                count++;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error resuming user removals: " + e.getMessage());
+        } finally {
+            event.setRows(count);
+            event.finish();
+        }
+    }
 
-            // nullify sender
-            updateSenderStmt.setString(1, username);
-            updateSenderStmt.executeUpdate();
+    /**
+     * Schedules the expiry of the stored messages that have one, e.g. after a restart.
+     * Messages that expired while the server was down are deleted on the next tick.
+     */
+    public void resumePendingExpiries() {
+        DatabaseEvent event = DatabaseEvent.start("resumePendingExpiries");
+        String query = "SELECT id, expires_at FROM messages WHERE expires_at IS NOT NULL";
+        int count = 0;
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                try (Statement stmt = shardConnection(shard).createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+                    while (rs.next()) {
+                        expiryWheel.schedule(rs.getLong("id"), epochMillis(rs.getTimestamp("expires_at").toLocalDateTime()));
+                        count++;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error resuming message expiries: " + e.getMessage());
+        } finally {
+            event.setRows(count);
+            event.finish();
+        }
+    }
 
-            // nullify receiver
-            updateReceiverStmt.setString(1, username);
-            updateReceiverStmt.executeUpdate();
+    /**
+     * Deletes a batch of expired messages from every shard, the wheel only knows their ids.
+     * The deleted messages are taken off their receivers' mailbox sizes.
+     * Called by the expiry wheel once per tick.
+     *
+     * @param ids the ids of the expired messages
+     */
+    private void deleteExpiredMessages(long[] ids) {
+        DatabaseEvent event = DatabaseEvent.start("deleteExpiredMessages");
+        String query = "DELETE FROM messages WHERE id = ANY (?) "
+                + "RETURNING receiver, COALESCE(OCTET_LENGTH(content_z), OCTET_LENGTH(content), 0) AS bytes";
+        Long[] boxed = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            boxed[i] = ids[i];
+        }
+        int rowsAffected = 0;
+        try {
+            for (int shard = 0; shard < shards.size() && rowsAffected < ids.length; shard++) {
+                Connection shardConnection = shardConnection(shard);
+                try (PreparedStatement stmt = shardConnection.prepareStatement(query)) {
+                    stmt.setArray(1, shardConnection.createArrayOf("bigint", boxed));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            rowsAffected++;
+                            String receiver = rs.getString("receiver");
+                            if (receiver != null) {
+                                messageStats.addReceived(receiver, -1, -rs.getLong("bytes"));
+                            }
+                        }
+                    }
+                }
+            }
+            event.setRows(rowsAffected);
+            System.out.println(rowsAffected + " expired messages deleted.");
+        } catch (SQLException e) {
+            System.err.println("Error deleting expired messages: " + e.getMessage());
+        } finally {
+            event.finish();
+        }
+    }
 
-            // Delete user
-            deleteUserStmt.setString(1, username);
-            int rowsAffected = deleteUserStmt.executeUpdate();
-            if (rowsAffected == 0) {
-                throw new SQLException("User not found or could not be deleted.");
+    /**
+     * @param admin the admin user asking for the progress
+     * @return the progress of every removal since the server started, by username
+     * @throws Exception if the admin user is not an admin
+     */
+    public Map<String, UserRemovalWorker.Progress> getRemovalProgress(User admin) throws Exception {
+        if (!admin.isAdmin()) {
+            throw new Exception("Only admins can see removals.");
+        }
+        return removalWorker.getProgress();
+    }
+
+    /**
+     * Sets the sender or receiver of at most limit messages of a removed user to NULL.
+     * Received messages are all on the user's shard, sent ones may be on any shard.
+     *
+     * @param username the username of the removed user
+     * @param sender   true to detach sent messages, false for received ones
+     * @param limit    the batch size
+     * @return the number of messages detached
+     * @throws SQLException if the update fails
+     */
+    int detachMessagesBatch(String username, boolean sender, int limit) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("detachMessagesBatch");
+        String column = sender ? "sender" : "receiver";
+        String query = "UPDATE messages SET " + column + " = NULL WHERE id IN (SELECT id FROM messages WHERE " + column + " = ? LIMIT ?)";
+        int rowsAffected = 0;
+        try {
+            for (int shard = 0; shard < shards.size() && rowsAffected < limit; shard++) {
+                if (!sender && shard != shards.shardFor(username)) {
+                    continue;
+                }
+                try (PreparedStatement stmt = shardConnection(shard).prepareStatement(query)) {
+                    stmt.setString(1, username);
+                    stmt.setInt(2, limit - rowsAffected);
+                    rowsAffected += stmt.executeUpdate();
+                }
             }
+            event.setRows(rowsAffected);
+            return rowsAffected;
+        } finally {
+            event.finish();
+        }
+    }
 
-            System.out.println("User removed successfully.");
-        } catch (SQLException e) {
-            System.err.println("Error removing user: " + e.getMessage());
-            throw e;
+    /**
+     * Deletes the row of a tombstoned user whose messages are detached, and the user's mailbox
+     * size, as the detached messages no longer belong to any mailbox.
+     *
+     * @param username the username of the removed user
+     * @throws SQLException if the delete fails
+     */
+    void deleteTombstonedUser(String username) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("deleteTombstonedUser");
+        String query = "DELETE FROM users WHERE username = ? AND removed_at IS NOT NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query);
+             PreparedStatement mailbox = connection().prepareStatement("DELETE FROM mailbox_stats WHERE username = ?")) {
+            stmt.setString(1, username);
+            event.setRows(stmt.executeUpdate());
+            mailbox.setString(1, username);
+            mailbox.executeUpdate();
+        } finally {
+            event.finish();
         }
     }
 
@@ -223,8 +727,10 @@ public class DatabaseHandler {
         if (!admin.isAdmin()) {
             throw new Exception("Only admins can update users.");
         }
+        DatabaseEvent event = DatabaseEvent.start("updateUser");
+        replicas.recordWrite(admin.getUsername());
         String query = "UPDATE users SET name = ?, surname = ?, birthdate = ?, gender = ?, email = ?, location = ?, password = ?, isAdmin = ? WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
             stmt.setString(1, updatedUser.getName());
             stmt.setString(2, updatedUser.getSurname());
             stmt.setDate(3, updatedUser.getBirthdate());
@@ -235,6 +741,7 @@ public class DatabaseHandler {
             stmt.setBoolean(8, updatedUser.isAdmin());
             stmt.setString(9, updatedUser.getUsername());
             int rowsAffected = stmt.executeUpdate();
+            event.setRows(rowsAffected);
             if (rowsAffected > 0) {
                 System.out.println("User updated successfully.");
             } else {
@@ -242,6 +749,8 @@ public class DatabaseHandler {
             }
         } catch (SQLException e) {
             System.err.println("Error updating user: " + e.getMessage());
+        } finally {
+            event.finish();
         }
     }
 
@@ -252,11 +761,13 @@ public class DatabaseHandler {
      * @return the User object if found, null otherwise
      */
     public User getUserByUsername(String username) {
+        DatabaseEvent event = DatabaseEvent.start("getUserByUsername");
         String query = "SELECT * FROM users WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
             stmt.setString(1, username);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
+                    event.setRows(1);
                     return new User(
                             rs.getString("username"),
                             rs.getString("name"),
@@ -271,116 +782,1063 @@ public class DatabaseHandler {
             }
         } catch (SQLException e) {
             System.err.println("Error fetching user: " + e.getMessage());
+        } finally {
+            event.finish();
         }
         return null;
     }
 
     /**
-     * Lists all users in the database.
+     * Fetches a user that has not been removed from the database by username.
      *
-     * @param admin the admin user listing the users
-     * @return a list of User objects
-     * @throws Exception if the admin user is not an admin
+     * @param username the username of the user to fetch
+     * @return the User object if found and not removed, null otherwise
+     */
+    public User getActiveUser(String username) {
+        DatabaseEvent event = DatabaseEvent.start("getActiveUser");
+        String query = "SELECT * FROM users WHERE username = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    event.setRows(1);
+                    return new User(
+                            rs.getString("username"),
+                            rs.getString("name"),
+                            rs.getString("surname"),
+                            rs.getDate("birthdate"),
+                            rs.getString("gender"),
+                            rs.getString("email"),
+                            rs.getString("location"),
+                            rs.getString("password"),
+                            rs.getBoolean("isAdmin"));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error fetching user: " + e.getMessage());
+        } finally {
+            event.finish();
+        }
+        return null;
+    }
+
+    /**
+     * Lists one page of users ordered by username, passing each row to the consumer as it is read.
+     * Only the displayed columns are selected, so the returned users have no birthdate or password.
+     * Pages are keyset based: the next page starts after the last username of the previous one.
+     *
+     * @param admin    the admin user listing the users
+     * @param after    the last username of the previous page, null for the first page
+     * @param column   the column to filter by prefix, "username" or "location", null for no filter
+     * @param prefix   the prefix the column must start with
+     * @param limit    the maximum number of users in the page
+     * @param consumer receives the users of the page in order
+     * @return the username to continue after if the page is full, null if this is the last page
+     * @throws Exception if the admin user is not an admin or the filter column is invalid
      */
-    public List<User> listUsers(User admin) throws Exception {
+    public String listUsers(User admin, String after, String column, String prefix, int limit,
+                            Consumer<User> consumer) throws Exception {
         if (!admin.isAdmin()) {
             throw new Exception("Only admins can list users.");
         }
-        List<User> users = new ArrayList<>();
-        String query = "SELECT * FROM users ORDER BY isadmin DESC;";
-        try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
-            while (rs.next()) {
-                User user = new User(
-                        rs.getString("username"),
-                        rs.getString("name"),
-                        rs.getString("surname"),
-                        rs.getDate("birthdate"),
-                        rs.getString("gender"),
-                        rs.getString("email"),
-                        rs.getString("location"),
-                        rs.getString("password"),
-                        rs.getBoolean("isAdmin"));
-                users.add(user);
+        StringBuilder query = new StringBuilder("SELECT username, name, surname, gender, email, location, isAdmin FROM users WHERE username > ? AND removed_at IS NULL");
+        if (column != null) {
+            if (!column.equals("username") && !column.equals("location")) {
+                throw new Exception("Users can only be filtered by username or location.");
+            }
+            // LIKE with a constant prefix is served by the *_pattern_idx indexes
+            query.append(" AND ").append(column).append(" LIKE ?");
+        }
+        query.append(" ORDER BY username LIMIT ?");
+
+        DatabaseEvent event = DatabaseEvent.start("listUsers");
+        String last = null;
+        int count = 0;
+        try (PreparedStatement stmt = readConnection(admin.getUsername()).prepareStatement(query.toString())) {
+            int index = 1;
+            stmt.setString(index++, after != null ? after : "");
+            if (column != null) {
+                stmt.setString(index++, escapeLike(prefix) + "%");
+            }
+            stmt.setInt(index, limit);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    last = rs.getString("username");
+                    count++;
+                    consumer.accept(new User(
+                            last,
+                            rs.getString("name"),
+                            rs.getString("surname"),
+                            null,
+                            rs.getString("gender"),
+                            rs.getString("email"),
+                            rs.getString("location"),
+                            null,
+                            rs.getBoolean("isAdmin")));
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error listing users: " + e.getMessage());
+            throw e;
+        } finally {
+            event.setRows(count);
+            event.finish();
         }
-        return users;
+        return count == limit ? last : null;
+    }
+
+    /**
+     * Escapes the LIKE wildcards in a user supplied prefix.
+     */
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     /**
-     * Saves a message to the database.
+     * Saves a message to the database and appends it to the receiver's cached recent inbox.
      *
      * @param message the message to save
      */
     public void saveMessage(Message message) {
-        String query = "INSERT INTO messages (sender, receiver, title, content, timestamp) VALUES (?, ?, ?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try {
+            saveMessage(message, null);
+        } catch (SQLException e) {
+            System.err.println("Error saving message: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves a message to the database unless the sender already sent a message with the
+     * same client message id, and appends it to the receiver's cached recent inbox.
+     *
+     * @param message         the message to save
+     * @param clientMessageId the id the client generated for the message, null if none
+     * @return true if the message was stored, false if it is a duplicate
+     * @throws SQLException if the insert fails
+     */
+    public boolean saveMessage(Message message, String clientMessageId) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("saveMessage");
+        replicas.recordWrite(message.getSender());
+        int shard = shards.shardFor(message.getReceiver());
+        String query = shard == 0
+                ? "INSERT INTO messages (sender, receiver, title, content, timestamp, client_msg_id, expires_at, attachment, content_z) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT (sender, client_msg_id) DO NOTHING"
+                : "INSERT INTO messages (sender, receiver, title, content, timestamp, client_msg_id, expires_at, attachment, content_z, id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT (sender, client_msg_id) DO NOTHING";
+        byte[] compressed = STORAGE_COMPRESSION.compress(message.getContent());
+        try (PreparedStatement stmt = shardConnection(shard).prepareStatement(query, new String[]{"id"})) {
+            stmt.setQueryTimeout(WRITE_TIMEOUT_SECONDS);
             stmt.setString(1, message.getSender());
             stmt.setString(2, message.getReceiver());
             stmt.setString(3, message.getTitle());
-            stmt.setString(4, message.getContent());
+            stmt.setString(4, compressed == null ? message.getContent() : null);
             stmt.setTimestamp(5, Timestamp.valueOf(message.getTimestamp()));
-            stmt.executeUpdate();
+            stmt.setString(6, clientMessageId);
+            stmt.setTimestamp(7, message.getExpiresAt() != null ? Timestamp.valueOf(message.getExpiresAt()) : null);
+            stmt.setString(8, message.getAttachment());
+            stmt.setBytes(9, compressed);
+            if (shard != 0) {
+                stmt.setLong(10, nextMessageId());
+            }
+            int rowsAffected = stmt.executeUpdate();
+            event.setRows(rowsAffected);
+            if (rowsAffected == 0) {
+                System.out.println("Duplicate message ignored.");
+                return false;
+            }
+            String content = message.getContent();
+            messageStats.record(message.getSender(), message.getReceiver(), message.getTimestamp().toLocalDate(),
+                    compressed != null ? compressed.length : content != null ? content.getBytes(StandardCharsets.UTF_8).length : 0);
+            try (ResultSet keys = stmt.getGeneratedKeys()) {
+                if (keys.next()) {
+                    long id = keys.getLong(1);
+                    inboxCache.append(new Message(id, message.getSender(), message.getReceiver(),
+                            message.getTitle(), message.getContent(), message.getTimestamp(), message.getExpiresAt(),
+                            message.getAttachment()));
+                    invalidationListener.accept(INVALIDATE_INBOX, message.getReceiver());
+                    if (message.getExpiresAt() != null) {
+                        expiryWheel.schedule(id, epochMillis(message.getExpiresAt()));
+                    }
+                }
+            }
             System.out.println("Message sent.");
-        } catch (SQLException e) {
-            System.err.println("Error saving message: " + e.getMessage());
+            return true;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Takes the id of a message stored on a shard other than the primary from the primary's
+     * sequence, so that ids stay unique across shards and keep growing for the sync cursors.
+     *
+     * @return the new message id
+     * @throws SQLException if the sequence cannot be read
+     */
+    private long nextMessageId() throws SQLException {
+        String query = "SELECT nextval(pg_get_serial_sequence('messages', 'id'))";
+        try (Statement stmt = connection().createStatement(); ResultSet rs = stmt.executeQuery(query)) {
+            rs.next();
+            return rs.getLong(1);
         }
     }
 
     /**
      * Fetches messages from the database for a given user's inbox.
+     * The inbox is read from the user's shard, the outbox from every shard, merged by timestamp.
      *
      * @param username the username of the user
      * @return a list of Message objects
      */
     public List<Message> getMessages(String username, boolean isInbox) {
+        DatabaseEvent event = DatabaseEvent.start(isInbox ? "getMessages(inbox)" : "getMessages(outbox)");
         List<Message> messages = new ArrayList<>();
-        String query = isInbox ? "SELECT * FROM messages WHERE receiver = ?" : "SELECT * FROM messages WHERE sender = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, username);
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    Timestamp timestamp = rs.getTimestamp("timestamp");
-                    LocalDateTime localDateTime = timestamp != null ? timestamp.toLocalDateTime() : null;
-
-                    String sender = rs.getString("sender");
-                    String receiver = rs.getString("receiver");
+        String query = isInbox
+                ? "SELECT * FROM messages WHERE receiver = ?" + NOT_EXPIRED
+                : "SELECT * FROM messages WHERE sender = ?" + NOT_EXPIRED;
+        try {
+            if (isInbox) {
+                messages = queryMessages(shardReadConnection(shards.shardFor(username), username), query, username);
+            } else {
+                messages = queryAllShards(username, query, username);
+                messages.sort(Comparator.comparing(Message::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()))
+                        .thenComparingLong(Message::getId));
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            event.setRows(messages.size());
+            event.finish();
+        }
+        return messages;
+    }
+
+    /**
+     * Fetches the messages of a user's inbox or outbox after a sync cursor, for clients that
+     * keep a local copy and only need what they have not seen.
+     * Ids are taken before the insert commits, so a message can become visible after one with a
+     * higher id. The cursor returned therefore only moves up to the settled id, below which every
+     * message is visible; the messages above it are sent again by the next sync, and the client
+     * keeps each id once.
+     *
+     * @param username the username of the user
+     * @param isInbox  true for received messages, false for sent ones
+     * @param afterId  the cursor of the previous sync, 0 for the whole box
+     * @return the messages after the cursor in id order, and the cursor for the next sync
+     */
+    public SyncPage getMessagesSince(String username, boolean isInbox, long afterId) {
+        DatabaseEvent event = DatabaseEvent.start(isInbox ? "getMessagesSince(inbox)" : "getMessagesSince(outbox)");
+        // taken before the query, so that every message up to it is visible to the query
+        long cursor = Math.max(afterId, settledMessageId());
+        List<Message> messages = new ArrayList<>();
+        String query = isInbox
+                ? "SELECT * FROM messages WHERE receiver = ? AND id > ?" + NOT_EXPIRED + " ORDER BY id"
+                : "SELECT * FROM messages WHERE sender = ? AND id > ?" + NOT_EXPIRED + " ORDER BY id";
+        try {
+            if (isInbox) {
+                messages = queryMessages(shardReadConnection(shards.shardFor(username), username), query, username, afterId);
+            } else {
+                messages = queryAllShards(username, query, username, afterId);
+                messages.sort(Comparator.comparingLong(Message::getId));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error fetching new messages: " + e.getMessage());
+            cursor = afterId;
+        } finally {
+            event.setRows(messages.size());
+            event.finish();
+        }
+        return new SyncPage(messages, cursor);
+    }
+
+    /**
+     * Samples the message sequence at most once a second and keeps the samples of the last
+     * settle window. The newest sample older than the window is the settled id: every id up to
+     * it was taken so long ago that its insert has committed or failed by now.
+     *
+     * @return the highest id below which all messages are visible, 0 while not known yet
+     */
+    private long settledMessageId() {
+        long now = System.nanoTime();
+        boolean sample;
+        synchronized (idSamples) {
+            sample = idSamples.isEmpty() || now - idSamples.peekLast()[0] >= SYNC_SAMPLE_NANOS;
+        }
+        if (sample) {
+            try {
+                long lastId = lastMessageId();
+                synchronized (idSamples) {
+                    idSamples.addLast(new long[]{now, lastId});
+                }
+            } catch (SQLException e) {
+                System.err.println("Error reading the message sequence: " + e.getMessage());
+            }
+        }
+        synchronized (idSamples) {
+            while (idSamples.size() > 1 && now - secondSample()[0] >= SYNC_SETTLE_NANOS) {
+                idSamples.pollFirst();
+            }
+            long[] oldest = idSamples.peekFirst();
+            return oldest != null && now - oldest[0] >= SYNC_SETTLE_NANOS ? oldest[1] : 0;
+        }
+    }
+
+    /**
+     * @return the second oldest sample, the caller holds the lock and there are at least two
+     */
+    private long[] secondSample() {
+        Iterator<long[]> samples = idSamples.iterator();
+        samples.next();
+        return samples.next();
+    }
 
-                    Message message = new Message(
+    /**
+     * @return the last id taken from the message sequence of the primary, by any server
+     * @throws SQLException if the sequence cannot be read
+     */
+    private long lastMessageId() throws SQLException {
+        String query = "SELECT last_value, is_called FROM messages_id_seq";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            stmt.setQueryTimeout(WRITE_TIMEOUT_SECONDS);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                return rs.getBoolean("is_called") ? rs.getLong("last_value") : rs.getLong("last_value") - 1;
+            }
+        }
+    }
+
+    /**
+     * Runs a message query on every shard in parallel and collects the messages found, each one
+     * once: a message being moved by ShardRebalancer can briefly be on two shards.
+     *
+     * @param username the user whose own writes the read must see
+     * @param query    the query, selecting whole message rows
+     * @param params   the parameters of the query
+     * @return the messages of all shards, in no particular order
+     * @throws SQLException if the query fails on any shard
+     */
+    private List<Message> queryAllShards(String username, String query, Object... params) throws SQLException {
+        if (shardReaders == null) {
+            return queryMessages(readConnection(username), query, params);
+        }
+        List<CompletableFuture<List<Message>>> parts = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            int target = shard;
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return queryMessages(shardReadConnection(target, username), query, params);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, shardReaders));
+        }
+        Map<Long, Message> messages = new LinkedHashMap<>();
+        try {
+            for (CompletableFuture<List<Message>> part : parts) {
+                for (Message message : part.join()) {
+                    messages.putIfAbsent(message.getId(), message);
+                }
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw e;
+        }
+        return new ArrayList<>(messages.values());
+    }
+
+    /**
+     * Runs a message query on one connection.
+     *
+     * @param connection the connection of the shard to query
+     * @param query      the query, selecting whole message rows
+     * @param params     the parameters of the query
+     * @return the messages in the order of the query, with detached users shown as REMOVED
+     * @throws SQLException if the query fails
+     */
+    private static List<Message> queryMessages(Connection connection, String query, Object... params) throws SQLException {
+        List<Message> messages = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            for (int i = 0; i < params.length; i++) {
+                stmt.setObject(i + 1, params[i]);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Timestamp timestamp = rs.getTimestamp("timestamp");
+                    String sender = rs.getString("sender");
+                    String receiver = rs.getString("receiver");
+                    messages.add(new Message(
+                            rs.getLong("id"),
                             sender != null ? sender : "REMOVED",
                             receiver != null ? receiver : "REMOVED",
                             rs.getString("title"),
-                            rs.getString("content"),
-                            localDateTime
-                    );
-                    messages.add(message);
+                            readContent(rs),
+                            timestamp != null ? timestamp.toLocalDateTime() : null,
+                            toLocalDateTime(rs.getTimestamp("expires_at")),
+                            rs.getString("attachment")));
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @param rs a result set positioned on a messages row
+     * @return the body of the message, inflated if it was stored compressed
+     * @throws SQLException if the row cannot be read
+     */
+    private static String readContent(ResultSet rs) throws SQLException {
+        byte[] compressed = rs.getBytes("content_z");
+        return compressed != null ? STORAGE_COMPRESSION.decompress(compressed) : rs.getString("content");
+    }
+
+    /**
+     * Returns a page of the conversation between two users, both directions interleaved. The
+     * messages are found through the conversation key column, one index range scan per shard:
+     * messages to each user are on that user's shard, so at most two shards are read.
+     *
+     * @param username        the username of the user asking
+     * @param other           the username of the other user
+     * @param beforeTimestamp the timestamp of the oldest message of the previous page, null for the latest page
+     * @param beforeId        the id of the oldest message of the previous page
+     * @param limit           the page size
+     * @return at most limit messages sent before the previous page, in timestamp order
+     * @throws SQLException if a query fails
+     */
+    public List<Message> getConversation(String username, String other, LocalDateTime beforeTimestamp, long beforeId,
+                                         int limit) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("getConversation");
+        String query = "SELECT * FROM messages WHERE conversation = LEAST(?, ?) || ':' || GREATEST(?, ?)"
+                + (beforeTimestamp != null ? " AND (timestamp, id) < (?, ?)" : "")
+                + NOT_EXPIRED + " ORDER BY timestamp DESC, id DESC LIMIT ?";
+        List<Object> params = new ArrayList<>(List.of(username, other, username, other));
+        if (beforeTimestamp != null) {
+            params.add(Timestamp.valueOf(beforeTimestamp));
+            params.add(beforeId);
+        }
+        params.add(limit);
+        List<Message> messages = new ArrayList<>();
+        try {
+            Set<Integer> conversationShards = new HashSet<>(List.of(shards.shardFor(username), shards.shardFor(other)));
+            for (int shard : conversationShards) {
+                messages.addAll(queryMessages(shardReadConnection(shard, username), query, params.toArray()));
+            }
+            Comparator<Message> newestFirst = Comparator.comparing(Message::getTimestamp, Comparator.nullsFirst(Comparator.naturalOrder()))
+                    .thenComparingLong(Message::getId).reversed();
+            messages.sort(newestFirst);
+            if (messages.size() > limit) {
+                messages = new ArrayList<>(messages.subList(0, limit));
+            }
+            Collections.reverse(messages);
+            return messages;
+        } finally {
+            event.setRows(messages.size());
+            event.finish();
+        }
+    }
+
+    /**
+     * Checks whether any message references an attachment, on the primary of every shard, since
+     * a replica may not have the message that was just sent with it yet.
+     *
+     * @param hash the hash of the attachment
+     * @return true if a message references the attachment, or if that could not be checked
+     */
+    public boolean isAttachmentReferenced(String hash) {
+        DatabaseEvent event = DatabaseEvent.start("isAttachmentReferenced");
+        String query = "SELECT 1 FROM messages WHERE attachment = ? LIMIT 1";
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                try (PreparedStatement stmt = shardConnection(shard).prepareStatement(query)) {
+                    stmt.setString(1, hash);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            return true;
+                        }
+                    }
                 }
             }
+            return false;
         } catch (SQLException e) {
-            e.printStackTrace();
+            System.err.println("Error checking attachment references: " + e.getMessage());
+            return true; // never delete a blob that may still be referenced
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Checks whether a user sent or received a message with the given attachment. Received
+     * messages are on the user's shard, which is asked first; sent ones may be on any shard.
+     *
+     * @param username the username of the user
+     * @param hash     the hash of the attachment
+     * @return true if the user may download the attachment
+     */
+    public boolean canReadAttachment(String username, String hash) {
+        DatabaseEvent event = DatabaseEvent.start("canReadAttachment");
+        String query = "SELECT 1 FROM messages WHERE attachment = ? AND (sender = ? OR receiver = ?) LIMIT 1";
+        int home = shards.shardFor(username);
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                int shard = (home + i) % shards.size();
+                try (PreparedStatement stmt = shardReadConnection(shard, username).prepareStatement(query)) {
+                    stmt.setString(1, hash);
+                    stmt.setString(2, username);
+                    stmt.setString(3, username);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error checking attachment access: " + e.getMessage());
+        } finally {
+            event.finish();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the most recent messages of a user's inbox, oldest first. After the first call the
+     * messages are served from memory, since saveMessage keeps the cached inbox up to date.
+     *
+     * @param username the username of the user
+     * @return at most the cache capacity of the latest received messages
+     */
+    public List<Message> getRecentInbox(String username) {
+        return inboxCache.getRecent(username, this::loadRecentInbox);
+    }
+
+    /**
+     * @param admin the admin user asking for the statistics
+     * @return the hit ratio and memory footprint of the recent inbox cache
+     * @throws Exception if the admin user is not an admin
+     */
+    public String getInboxCacheStats(User admin) throws Exception {
+        if (!admin.isAdmin()) {
+            throw new Exception("Only admins can see cache statistics.");
+        }
+        return inboxCache.getStats();
+    }
+
+    /**
+     * @param admin the admin user asking for the statistics
+     * @return the compression ratio of the stored message bodies and the time spent on it
+     * @throws Exception if the admin user is not an admin
+     */
+    public String getCompressionStats(User admin) throws Exception {
+        if (!admin.isAdmin()) {
+            throw new Exception("Only admins can see compression statistics.");
+        }
+        return STORAGE_COMPRESSION.getStats();
+    }
+
+    /**
+     * Starts the thread that adds the statistics counted by saveMessage to the summary tables.
+     *
+     * @param periodMillis the time between two flushes
+     */
+    public void startStatsFlushing(long periodMillis) {
+        Thread flusher = new Thread(() -> {
+            bindDedicatedConnection(); // flushes run in transactions of their own
+            while (true) {
+                try {
+                    Thread.sleep(periodMillis);
+                    flushStats();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "stats-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Adds the statistics counted since the last flush to the summary tables in one transaction.
+     * If that fails the counts are kept for the next flush.
+     */
+    private void flushStats() {
+        MessageStats pending = messageStats.drain();
+        if (pending.isEmpty()) {
+            return;
+        }
+        DatabaseEvent event = DatabaseEvent.start("flushStats");
+        Connection connection = connection();
+        try {
+            connection.setAutoCommit(false);
+            event.setRows(pending.write(connection));
+            connection.commit();
+        } catch (SQLException e) {
+            System.err.println("Error writing message statistics: " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackError) {
+                System.err.println("Error rolling back message statistics: " + rollbackError.getMessage());
+            }
+            messageStats.addAll(pending);
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                System.err.println("Error restoring auto-commit: " + e.getMessage());
+            }
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns the usage statistics of a range of days: messages per day, the top senders and the
+     * largest mailboxes. Everything is read from the summary tables, plus the counts this server
+     * has not flushed yet; the messages table is not read.
+     *
+     * @param admin the admin user asking for the statistics
+     * @param from  the first day of the range
+     * @param to    the last day of the range
+     * @param top   the number of senders and mailboxes to show
+     * @return the statistics, one line per entry
+     * @throws Exception if the admin user is not an admin or the summary tables cannot be read
+     */
+    public String getStats(User admin, LocalDate from, LocalDate to, int top) throws Exception {
+        if (!admin.isAdmin()) {
+            throw new Exception("Only admins can see message statistics.");
+        }
+        DatabaseEvent event = DatabaseEvent.start("getStats");
+        Map<LocalDate, Long> perDay = new TreeMap<>();
+        Map<String, Long> perSender = new HashMap<>();
+        Map<String, long[]> mailboxes = new HashMap<>();
+        Connection connection = readConnection(null);
+        try {
+            String dayQuery = "SELECT day, SUM(messages) AS messages FROM message_stats_daily WHERE day BETWEEN ? AND ? GROUP BY day";
+            try (PreparedStatement stmt = connection.prepareStatement(dayQuery)) {
+                stmt.setDate(1, Date.valueOf(from));
+                stmt.setDate(2, Date.valueOf(to));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        perDay.put(rs.getDate("day").toLocalDate(), rs.getLong("messages"));
+                    }
+                }
+            }
+            String senderQuery = "SELECT sender, SUM(messages) AS messages FROM message_stats_daily WHERE day BETWEEN ? AND ? "
+                    + "GROUP BY sender ORDER BY messages DESC LIMIT ?";
+            try (PreparedStatement stmt = connection.prepareStatement(senderQuery)) {
+                stmt.setDate(1, Date.valueOf(from));
+                stmt.setDate(2, Date.valueOf(to));
+                stmt.setInt(3, top);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        perSender.put(rs.getString("sender"), rs.getLong("messages"));
+                    }
+                }
+            }
+            String mailboxQuery = "SELECT username, messages, bytes FROM mailbox_stats ORDER BY messages DESC LIMIT ?";
+            try (PreparedStatement stmt = connection.prepareStatement(mailboxQuery)) {
+                stmt.setInt(1, top);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        mailboxes.put(rs.getString("username"), new long[]{rs.getLong("messages"), rs.getLong("bytes")});
+                    }
+                }
+            }
+        } finally {
+            event.finish();
+        }
+        messageStats.addPendingTo(from, to, perDay, perSender, mailboxes);
+
+        StringBuilder sb = new StringBuilder("Messages per day, ").append(from).append(" to ").append(to).append(':');
+        long total = 0;
+        for (Map.Entry<LocalDate, Long> entry : perDay.entrySet()) {
+            sb.append(String.format("%n  %s  %d", entry.getKey(), entry.getValue()));
+            total += entry.getValue();
+        }
+        sb.append(String.format("%nTotal: %d%nTop senders:", total));
+        perSender.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(entry -> sb.append(String.format("%n  %s  %d", entry.getKey(), entry.getValue())));
+        sb.append(String.format("%nLargest mailboxes (messages in inbox):"));
+        mailboxes.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[0]).reversed())
+                .limit(top)
+                .forEach(entry -> sb.append(String.format("%n  %s  %d messages, %d KB",
+                        entry.getKey(), entry.getValue()[0], entry.getValue()[1] / 1024)));
+        return sb.toString();
+    }
+
+    /**
+     * Drops the cached inboxes that may refer to a removed user and tells the other nodes to do the same.
+     *
+     * @param username the username of the removed user
+     */
+    void invalidateCaches(String username) {
+        inboxCache.invalidateSender(username);
+        invalidationListener.accept(INVALIDATE_SENDER, username);
+    }
+
+    /**
+     * Applies a cache invalidation announced by another node of the cluster.
+     *
+     * @param kind     INVALIDATE_INBOX for a changed inbox, INVALIDATE_SENDER for a removed user,
+     *                 INVALIDATE_ALL when invalidations from a node may have been lost
+     * @param username the receiver of the changed inbox or the removed user
+     */
+    public void applyInvalidation(String kind, String username) {
+        switch (kind) {
+            case INVALIDATE_SENDER -> inboxCache.invalidateSender(username);
+            case INVALIDATE_ALL -> inboxCache.invalidateAll();
+            default -> inboxCache.invalidate(username);
+        }
+    }
+
+    /**
+     * Sets what is told about the cached data this server changed, so that the other nodes of a
+     * cluster can drop their copies.
+     *
+     * @param invalidationListener called with the kind of the change and the username
+     */
+    public void setInvalidationListener(BiConsumer<String, String> invalidationListener) {
+        this.invalidationListener = invalidationListener;
+    }
+
+    /**
+     * Loads the latest received messages of a user for the recent inbox cache. They are read from
+     * the primary of the shard, since a replica may not have the messages yet whose invalidation
+     * has already been applied.
+     *
+     * @param username the username of the user
+     * @return the latest messages, oldest first
+     */
+    private List<Message> loadRecentInbox(String username) {
+        DatabaseEvent event = DatabaseEvent.start("loadRecentInbox");
+        List<Message> messages = new ArrayList<>();
+        String query = "SELECT * FROM messages WHERE receiver = ?" + NOT_EXPIRED + " ORDER BY id DESC LIMIT ?";
+        try (PreparedStatement stmt = shardConnection(shards.shardFor(username)).prepareStatement(query)) {
+            stmt.setString(1, username);
+            stmt.setInt(2, inboxCache.getCapacity());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Timestamp timestamp = rs.getTimestamp("timestamp");
+                    String sender = rs.getString("sender");
+                    messages.add(new Message(
+                            rs.getLong("id"),
+                            sender != null ? sender : "REMOVED",
+                            username,
+                            rs.getString("title"),
+                            readContent(rs),
+                            timestamp != null ? timestamp.toLocalDateTime() : null,
+                            toLocalDateTime(rs.getTimestamp("expires_at")),
+                            rs.getString("attachment")));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.println("Error loading recent inbox: " + e.getMessage());
+        } finally {
+            event.setRows(messages.size());
+            event.finish();
         }
+        Collections.reverse(messages);
         return messages;
     }
 
+    /**
+     * @return the time as epoch milliseconds in the server's time zone, which timestamps are stored in
+     */
+    private static long epochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime toLocalDateTime(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toLocalDateTime() : null;
+    }
+
+    /**
+     * Adds a user to a channel, creating the channel if it does not exist yet. The read cursor
+     * of a new member starts before the first post, so the history of the channel can be read.
+     *
+     * @param channel  the name of the channel
+     * @param username the username of the user joining
+     * @return true if the user joined, false if the user was already a member
+     * @throws SQLException if the inserts fail
+     */
+    public boolean joinChannel(String channel, String username) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("joinChannel");
+        replicas.recordWrite(username);
+        String createQuery = "INSERT INTO channels (name, owner, created_at) VALUES (?, ?, ?) ON CONFLICT DO NOTHING";
+        String joinQuery = "INSERT INTO channel_members (channel, username) VALUES (?, ?) ON CONFLICT DO NOTHING";
+        try (PreparedStatement create = connection().prepareStatement(createQuery);
+             PreparedStatement join = connection().prepareStatement(joinQuery)) {
+            create.setString(1, channel);
+            create.setString(2, username);
+            create.setTimestamp(3, Timestamp.valueOf(LocalDateTime.now()));
+            create.executeUpdate();
+            join.setString(1, channel);
+            join.setString(2, username);
+            int rowsAffected = join.executeUpdate();
+            event.setRows(rowsAffected);
+            return rowsAffected > 0;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Stores a post once for all members of a channel. The receiver of the message is the channel.
+     * The post takes the next sequence number of its channel in the same transaction, whose update
+     * of the channel row keeps the other posts of the channel waiting until it commits. Sequence
+     * numbers therefore become visible in order, and the read cursors never skip a post.
+     *
+     * @param post the post, with the channel name as its receiver
+     * @return true if the post was stored, false if the sender is not a member of the channel
+     * @throws SQLException if the insert fails
+     */
+    public boolean postToChannel(Message post) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("postToChannel");
+        replicas.recordWrite(post.getSender());
+        String seqQuery = "UPDATE channels SET last_seq = last_seq + 1 WHERE name = ? "
+                + "AND EXISTS (SELECT 1 FROM channel_members WHERE channel = ? AND username = ?) RETURNING last_seq";
+        String query = "INSERT INTO channel_messages (channel, seq, sender, title, content, timestamp) VALUES (?, ?, ?, ?, ?, ?)";
+        Connection connection = connection();
+        try {
+            connection.setAutoCommit(false);
+            long seq;
+            try (PreparedStatement next = connection.prepareStatement(seqQuery)) {
+                next.setString(1, post.getReceiver());
+                next.setString(2, post.getReceiver());
+                next.setString(3, post.getSender());
+                try (ResultSet rs = next.executeQuery()) {
+                    if (!rs.next()) {
+                        connection.rollback();
+                        return false;
+                    }
+                    seq = rs.getLong(1);
+                }
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                stmt.setString(1, post.getReceiver());
+                stmt.setLong(2, seq);
+                stmt.setString(3, post.getSender());
+                stmt.setString(4, post.getTitle());
+                stmt.setString(5, post.getContent());
+                stmt.setTimestamp(6, Timestamp.valueOf(post.getTimestamp()));
+                event.setRows(stmt.executeUpdate());
+            }
+            connection.commit();
+            return true;
+        } catch (SQLException e) {
+            rollbackQuietly(connection);
+            throw e;
+        } finally {
+            restoreAutoCommit(connection);
+            event.finish();
+        }
+    }
+
+    /**
+     * Returns the posts of a channel the member has not read yet and moves the member's read
+     * cursor past them. The cursor is a channel sequence number, see postToChannel. The cursor
+     * is read with a row lock and advanced in the same transaction as the posts are read, so two
+     * concurrent reads of the same member do not return the same posts.
+     *
+     * @param channel  the name of the channel
+     * @param username the username of the member
+     * @param limit    the maximum number of posts to return
+     * @return the unread posts in order, null if the user is not a member of the channel
+     * @throws SQLException if a query fails
+     */
+    public List<Message> readChannel(String channel, String username, int limit) throws SQLException {
+        DatabaseEvent event = DatabaseEvent.start("readChannel");
+        String cursorQuery = "SELECT last_read_id FROM channel_members WHERE channel = ? AND username = ? FOR UPDATE";
+        String postsQuery = "SELECT * FROM channel_messages WHERE channel = ? AND seq > ? ORDER BY seq LIMIT ?";
+        String advanceQuery = "UPDATE channel_members SET last_read_id = ? WHERE channel = ? AND username = ?";
+        List<Message> posts = new ArrayList<>();
+        Connection connection = connection();
+        try {
+            connection.setAutoCommit(false);
+            long lastReadId;
+            try (PreparedStatement cursor = connection.prepareStatement(cursorQuery)) {
+                cursor.setString(1, channel);
+                cursor.setString(2, username);
+                try (ResultSet rs = cursor.executeQuery()) {
+                    if (!rs.next()) {
+                        connection.rollback();
+                        return null;
+                    }
+                    lastReadId = rs.getLong("last_read_id");
+                }
+            }
+            long lastSeq = lastReadId;
+            try (PreparedStatement stmt = connection.prepareStatement(postsQuery)) {
+                stmt.setString(1, channel);
+                stmt.setLong(2, lastReadId);
+                stmt.setInt(3, limit);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        lastSeq = rs.getLong("seq");
+                        String sender = rs.getString("sender");
+                        posts.add(new Message(
+                                rs.getLong("id"),
+                                sender != null ? sender : "REMOVED",
+                                channel,
+                                rs.getString("title"),
+                                rs.getString("content"),
+                                toLocalDateTime(rs.getTimestamp("timestamp"))));
+                    }
+                }
+            }
+            if (!posts.isEmpty()) {
+                try (PreparedStatement advance = connection.prepareStatement(advanceQuery)) {
+                    advance.setLong(1, lastSeq);
+                    advance.setString(2, channel);
+                    advance.setString(3, username);
+                    advance.executeUpdate();
+                }
+            }
+            connection.commit();
+            return posts;
+        } catch (SQLException e) {
+            rollbackQuietly(connection);
+            throw e;
+        } finally {
+            restoreAutoCommit(connection);
+            event.setRows(posts.size());
+            event.finish();
+        }
+    }
+
+    /**
+     * Rolls back the transaction of a failed operation, logging a failure of the rollback itself.
+     *
+     * @param connection the connection the transaction runs on
+     */
+    private static void rollbackQuietly(Connection connection) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.err.println("Error rolling back: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Switches a connection back to auto-commit after a transaction.
+     *
+     * @param connection the connection the transaction ran on
+     */
+    private static void restoreAutoCommit(Connection connection) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            System.err.println("Error restoring auto-commit: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes a batch of last seen times to the users table in one round trip.
+     * A time older than the stored one, e.g. written by another node, is ignored.
+     *
+     * @param lastSeen the last seen times by username
+     */
+    public void updateLastSeen(Map<String, LocalDateTime> lastSeen) {
+        DatabaseEvent event = DatabaseEvent.start("updateLastSeen");
+        String query = "UPDATE users SET last_seen = ? WHERE username = ? AND (last_seen IS NULL OR last_seen < ?)";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            for (Map.Entry<String, LocalDateTime> entry : lastSeen.entrySet()) {
+                Timestamp timestamp = Timestamp.valueOf(entry.getValue());
+                stmt.setTimestamp(1, timestamp);
+                stmt.setString(2, entry.getKey());
+                stmt.setTimestamp(3, timestamp);
+                stmt.addBatch();
+            }
+            int rows = 0;
+            for (int count : stmt.executeBatch()) {
+                rows += Math.max(count, 0);
+            }
+            event.setRows(rows);
+        } catch (SQLException e) {
+            System.err.println("Error writing last seen times: " + e.getMessage());
+        } finally {
+            event.finish();
+        }
+    }
 
     /**
-     * Checks if a user has been removed from the database.
+     * @param username the username of the user
+     * @return the last seen time stored for the user, null if there is none
+     */
+    public LocalDateTime getLastSeen(String username) {
+        DatabaseEvent event = DatabaseEvent.start("getLastSeen");
+        String query = "SELECT last_seen FROM users WHERE username = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = readConnection(null).prepareStatement(query)) {
+            stmt.setString(1, username);
+            try (ResultSet rs = stmt.executeQuery()) {
+                boolean found = rs.next();
+                event.setRows(found ? 1 : 0);
+                return found ? toLocalDateTime(rs.getTimestamp("last_seen")) : null;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error reading last seen time: " + e.getMessage());
+            return null;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Checks if a user has been removed from the database. The sessions are kicked on this
+     * answer, so it is read from the primary: a lagging replica would not know users that were
+     * just added yet. If the check fails the answer is unknown and the user is kept.
      *
      * @param username the username of the user
-     * @return true if the user is removed, false otherwise
+     * @return true if the user is removed, false if not or if the check failed
      */
     public boolean isUserRemoved(String username) {
-        String query = "SELECT * FROM users WHERE username = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        DatabaseEvent event = DatabaseEvent.start("isUserRemoved");
+        String query = "SELECT 1 FROM users WHERE username = ? AND removed_at IS NULL";
+        try (PreparedStatement stmt = connection().prepareStatement(query)) {
+            // a stalled database fails the check quickly, and the session is kept
+            stmt.setQueryTimeout(WRITE_TIMEOUT_SECONDS);
             stmt.setString(1, username);
             try (ResultSet rs = stmt.executeQuery()) {
-                return !rs.next();
+                boolean active = rs.next();
+                event.setRows(active ? 1 : 0);
+                return !active;
             }
         } catch (SQLException e) {
             System.err.println("Error checking if user is removed: " + e.getMessage());
-            return true; // assuming user is removed if there's an error, may need to change
+            return false; // a failed check must not kick every online user
+        } finally {
+            event.finish();
         }
     }
 
+    /**
+     * The messages of one incremental sync and the cursor to ask for the next one with.
+     */
+    public static class SyncPage {
+
+        private final List<Message> messages;
+        private final long cursor;
+
+        SyncPage(List<Message> messages, long cursor) {
+            this.messages = messages;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return the messages after the requested cursor, in id order
+         */
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the id the next sync should ask for the messages after
+         */
+        public long getCursor() {
+            return cursor;
+        }
+    }
 }
@@ -0,0 +1,168 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class schedules the expiry of messages on a hierarchical timer wheel.
+ * The wheel has four levels of 64 slots. A level 0 slot covers one tick (a second), a level 1 slot
+ * 64 ticks, and so on, so about six months of deadlines fit in 256 slots. Scheduling only appends
+ * the message id to a slot, and each tick empties at most one slot per level. Entries move down a
+ * level when their slot comes up and fire from level 0, so millions of pending expiries cost no
+ * more than their ids. Expired ids of one tick are handed to the callback as a single batch.
+ */
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+public class ExpiryWheel {
+
+    private static final long TICK_MILLIS = 1000;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final Bucket[][] wheel = new Bucket[LEVELS][SLOTS];
+    private final Consumer<long[]> onExpired;
+    private long currentTick = System.currentTimeMillis() / TICK_MILLIS;
+    private int pending;
+
+    /**
+     * Constructor for ExpiryWheel with parameters
+     *
+     * @param name        the name of the ticking thread
+     * @param threadSetup run once on the ticking thread before it starts
+     * @param onExpired   called on the ticking thread with the ids that expired in one tick
+     */
+    public ExpiryWheel(String name, Runnable threadSetup, Consumer<long[]> onExpired) {
+        this.onExpired = onExpired;
+        for (Bucket[] level : wheel) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                level[slot] = new Bucket();
+            }
+        }
+        Thread thread = new Thread(() -> {
+            threadSetup.run();
+            tickLoop();
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules an id to expire at a given time. Deadlines in the past expire on the next tick.
+     *
+     * @param id             the id of the message
+     * @param deadlineMillis the expiry time in epoch milliseconds
+     */
+    public synchronized void schedule(long id, long deadlineMillis) {
+        // the slot of the current tick has already fired
+        insert(id, Math.max((deadlineMillis + TICK_MILLIS - 1) / TICK_MILLIS, currentTick + 1));
+        pending++;
+    }
+
+    /**
+     * @return the number of ids that have not expired yet
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Places an entry in the lowest level whose range covers its deadline.
+     * Cascaded entries may be due on the current tick, whose level 0 slot fires right after.
+     */
+    private void insert(long id, long tick) {
+        long delta = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        // deadlines beyond the top level wait in it and are re-placed each time their slot comes up
+        wheel[level][(int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)].add(id, tick);
+    }
+
+    /**
+     * Advances the wheel once a tick, catching up after pauses, and expires the due entries.
+     */
+    @SuppressWarnings("BusyWait")
+    private void tickLoop() {
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS - System.currentTimeMillis() % TICK_MILLIS);
+                long now = System.currentTimeMillis() / TICK_MILLIS;
+                long[] expired;
+                while ((expired = advance(now)) != null) {
+                    if (expired.length > 0) {
+                        onExpired.accept(expired);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error expiring messages: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Moves the wheel one tick forward if it is behind the clock.
+     *
+     * @param now the current tick
+     * @return the ids that expired on the new tick, null if the wheel is up to date
+     */
+    private synchronized long[] advance(long now) {
+        if (currentTick >= now) {
+            return null;
+        }
+        currentTick++;
+        // when a lower level wraps around, the next slot of the level above moves down, highest first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                Bucket bucket = wheel[level][(int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+                Bucket moved = bucket.drain();
+                for (int i = 0; i < moved.size; i++) {
+                    insert(moved.ids[i], moved.ticks[i]);
+                }
+            }
+        }
+        Bucket due = wheel[0][(int) currentTick & (SLOTS - 1)].drain();
+        long[] expired = Arrays.copyOf(due.ids, due.size);
+        pending -= due.size;
+        return expired;
+    }
+
+    /**
+     * Growable pair of arrays holding the ids and deadlines of one slot.
+     */
+    private static class Bucket {
+
+        private long[] ids = new long[0];
+        private long[] ticks = new long[0];
+        private int size;
+
+        void add(long id, long tick) {
+            if (size == ids.length) {
+                int capacity = Math.max(4, size * 2);
+                ids = Arrays.copyOf(ids, capacity);
+                ticks = Arrays.copyOf(ticks, capacity);
+            }
+            ids[size] = id;
+            ticks[size] = tick;
+            size++;
+        }
+
+        /**
+         * Empties the slot.
+         *
+         * @return a bucket with the former contents
+         */
+        Bucket drain() {
+            Bucket contents = new Bucket();
+            contents.ids = ids;
+            contents.ticks = ticks;
+            contents.size = size;
+            ids = new long[0];
+            ticks = new long[0];
+            size = 0;
+            return contents;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class keeps the most recent messages of each active user's inbox in memory.
+ * Every user gets a fixed size ring buffer that is loaded from the database on the first read
+ * and appended to whenever a message to that user is saved, so later reads need no query.
+ * The total size of the cached messages is bounded; when the budget is exceeded the users that
+ * have been idle the longest are evicted.
+ * Only saves on this server are appended. In a cluster, the other nodes are told which inboxes
+ * changed and drop them, so that their next read loads them again from the primary.
+ */
+
+import com.srdc.messageapp.models.Message;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+public class InboxCache {
+
+    private static final long MESSAGE_OVERHEAD_BYTES = 120; // object headers, fields and the timestamp
+
+    private final int capacity;
+    private final long maxBytes;
+    private final Map<String, Ring> rings = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Constructor for InboxCache with parameters
+     *
+     * @param capacity the number of recent messages kept per user
+     * @param maxBytes the approximate memory budget of all cached messages
+     */
+    public InboxCache(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the number of recent messages kept per user
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the recent inbox of a user, loading it on a miss.
+     *
+     * @param username the receiver
+     * @param loader   loads the most recent messages of the user, newest last
+     * @return the cached messages, oldest first
+     */
+    public List<Message> getRecent(String username, Function<String, List<Message>> loader) {
+        List<Message> recent;
+        while (true) {
+            Ring ring = rings.computeIfAbsent(username, k -> new Ring(capacity));
+            synchronized (ring) {
+                if (ring.evicted) {
+                    continue; // evicted concurrently, use the new ring
+                }
+                if (!ring.loaded) {
+                    misses.incrementAndGet();
+                    for (Message message : loader.apply(username)) {
+                        bytes.addAndGet(ring.add(message));
+                    }
+                    ring.loaded = true;
+                } else {
+                    hits.incrementAndGet();
+                }
+                ring.lastAccess = System.nanoTime();
+                recent = ring.toList();
+                break;
+            }
+        }
+        evictIfNeeded();
+        return recent;
+    }
+
+    /**
+     * Appends a saved message to the receiver's ring if the receiver is cached.
+     *
+     * @param message the saved message, with its id
+     */
+    public void append(Message message) {
+        Ring ring = rings.get(message.getReceiver());
+        if (ring == null) {
+            return;
+        }
+        synchronized (ring) {
+            if (ring.loaded) {
+                bytes.addAndGet(ring.add(message));
+            }
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Drops the cached inbox of a user, e.g. after a message to the user was saved on another node.
+     *
+     * @param username the receiver
+     */
+    public void invalidate(String username) {
+        evict(username);
+    }
+
+    /**
+     * Drops every cached inbox, e.g. when the channel to another node failed and its
+     * invalidations may have been lost.
+     */
+    public void invalidateAll() {
+        rings.keySet().forEach(this::evict);
+    }
+
+    /**
+     * Drops the cached inbox of a removed user and every cached inbox holding a message from them,
+     * since their messages have been detached from them in the database.
+     *
+     * @param sender the username of the removed user
+     */
+    public void invalidateSender(String sender) {
+        evict(sender);
+        for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+            boolean affected;
+            synchronized (entry.getValue()) {
+                affected = entry.getValue().hasSender(sender);
+            }
+            if (affected) {
+                evict(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return hit ratio, hits, misses, cached users and the approximate memory footprint
+     */
+    public String getStats() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return String.format("Inbox cache: hit ratio %.1f%% (%d hits, %d misses), %d users, ~%d KB of %d KB",
+                total == 0 ? 0.0 : hitCount * 100.0 / total, hitCount, total - hitCount,
+                rings.size(), bytes.get() / 1024, maxBytes / 1024);
+    }
+
+    /**
+     * Evicts the users idle the longest until the cache fits its memory budget.
+     */
+    private void evictIfNeeded() {
+        if (bytes.get() <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, Ring>> entries = new ArrayList<>(rings.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().lastAccess));
+        for (Map.Entry<String, Ring> entry : entries) {
+            if (bytes.get() <= maxBytes * 3 / 4) {
+                break;
+            }
+            evict(entry.getKey());
+        }
+    }
+
+    /**
+     * Removes the ring of a user and releases its bytes.
+     */
+    private void evict(String username) {
+        Ring ring = rings.remove(username);
+        if (ring != null) {
+            synchronized (ring) {
+                bytes.addAndGet(-ring.bytes);
+                ring.loaded = false;
+                ring.evicted = true;
+            }
+        }
+    }
+
+    /**
+     * @return the approximate heap size of a message
+     */
+    private static long sizeOf(Message message) {
+        long chars = length(message.getSender()) + length(message.getReceiver())
+                + length(message.getTitle()) + length(message.getContent()) + length(message.getAttachment());
+        return MESSAGE_OVERHEAD_BYTES + chars * 2;
+    }
+
+    private static int length(String value) {
+        return value != null ? value.length() : 0;
+    }
+
+    /**
+     * Fixed size ring buffer of the recent messages of one user. Guarded by its own monitor.
+     */
+    private static class Ring {
+
+        private final Message[] messages;
+        private int head; // index of the oldest message
+        private int size;
+        private long bytes;
+        private boolean loaded;
+        private boolean evicted;
+        private volatile long lastAccess = System.nanoTime();
+
+        Ring(int capacity) {
+            messages = new Message[capacity];
+        }
+
+        /**
+         * Adds a message unless it is already in the ring, overwriting the oldest one when full.
+         *
+         * @return the change in the approximate size of the ring
+         */
+        long add(Message message) {
+            for (int i = 0; i < size; i++) {
+                if (message.getId() != 0 && messages[(head + i) % messages.length].getId() == message.getId()) {
+                    return 0;
+                }
+            }
+            long delta = sizeOf(message);
+            if (size == messages.length) {
+                delta -= sizeOf(messages[head]);
+                messages[head] = message;
+                head = (head + 1) % messages.length;
+            } else {
+                messages[(head + size) % messages.length] = message;
+                size++;
+            }
+            bytes += delta;
+            return delta;
+        }
+
+        boolean hasSender(String sender) {
+            for (int i = 0; i < size; i++) {
+                if (sender.equals(messages[(head + i) % messages.length].getSender())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<Message> toList() {
+            List<Message> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Message message = messages[(head + i) % messages.length];
+                if (!message.isExpired()) {
+                    list.add(message);
+                }
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class spreads the messages table over several databases (shards) by receiver.
+ * Receivers are placed on a consistent hash ring with a number of virtual nodes per shard, so a
+ * user's whole inbox is on one shard, and adding a shard only moves the inboxes that now hash to
+ * it (see ShardRebalancer).
+ * Shard 0 is the primary database, which also keeps the users, the channels and the message id
+ * sequence. The other shards only have a messages table, created from shard.sql. Like the
+ * primary, each shard has one shared connection and one connection per database executor thread
+ * that has a dedicated connection of its own.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+public class MessageShards {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final String SCHEMA_SCRIPT = "src/main/resources/shard.sql";
+
+    private final List<String> urls; // shards 1..n, the primary is shard 0
+    private final String user;
+    private final String password;
+    private final NavigableMap<Long, Integer> ring = new TreeMap<>();
+    private final Map<Integer, Connection> shared = new HashMap<>();
+    private final ThreadLocal<Map<Integer, Connection>> dedicated = ThreadLocal.withInitial(HashMap::new);
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    });
+
+    /**
+     * Constructor for MessageShards with parameters. Creates the messages table on every shard
+     * that does not have it yet.
+     *
+     * @param shardUrls the JDBC URLs of the shards next to the primary, may be empty
+     * @param user      the username for the shard connections
+     * @param password  the password for the shard connections
+     */
+    public MessageShards(List<String> shardUrls, String user, String password) {
+        this.urls = List.copyOf(shardUrls);
+        this.user = user;
+        this.password = password;
+        for (int shard = 0; shard <= urls.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                // placed by shard number, not URL, so moving a shard to another host moves no data
+                ring.put(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+        for (int shard = 1; shard <= urls.size(); shard++) {
+            try {
+                DatabaseHandler.executeSqlScript(connection(shard, false), SCHEMA_SCRIPT);
+            } catch (SQLException e) {
+                System.err.println("Error preparing shard " + shard + ": " + e.getMessage());
+            }
+        }
+        if (!urls.isEmpty()) {
+            System.out.println("Storing messages on " + size() + " shards.");
+        }
+    }
+
+    /**
+     * @return the number of shards, the primary included
+     */
+    public int size() {
+        return urls.size() + 1;
+    }
+
+    /**
+     * @param receiver the username of the receiver of a message
+     * @return the shard that stores the messages received by the user
+     */
+    public int shardFor(String receiver) {
+        if (urls.isEmpty()) {
+            return 0;
+        }
+        Map.Entry<Long, Integer> node = ring.ceilingEntry(hash(receiver));
+        return node != null ? node.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns the connection to a shard other than the primary, opening it on first use.
+     *
+     * @param shard           the shard number, at least 1
+     * @param dedicatedThread true if the calling thread has a dedicated primary connection
+     * @return the connection to the shard
+     * @throws SQLException if the connection cannot be opened
+     */
+    public Connection connection(int shard, boolean dedicatedThread) throws SQLException {
+        Map<Integer, Connection> connections = dedicatedThread ? dedicated.get() : shared;
+        synchronized (connections) {
+            Connection cached = connections.get(shard);
+            if (cached != null && !cached.isClosed()) {
+                return cached;
+            }
+            Connection connection = DriverManager.getConnection(urls.get(shard - 1), user, password);
+            connections.put(shard, connection);
+            return connection;
+        }
+    }
+
+    /**
+     * @return the position of a key on the ring, the first 8 bytes of its MD5 digest
+     */
+    private long hash(String key) {
+        byte[] digest = digests.get().digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
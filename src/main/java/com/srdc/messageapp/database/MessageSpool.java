@@ -0,0 +1,217 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class keeps accepted messages on local disk while the database cannot store them.
+ * Every message is appended to a spool file as a length prefixed record and forced to disk
+ * before the send is acknowledged, so an accepted message survives a crash of the server.
+ * Once the database is back the records are replayed in the order they were appended and the
+ * file is emptied. Every record carries a client message id, so a record replayed twice after a
+ * crash in the middle of a replay is stored only once.
+ */
+
+import com.srdc.messageapp.models.Message;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.UUID;
+
+public class MessageSpool implements Closeable {
+
+    private final FileChannel channel;
+    private long size; // bytes of complete records
+    private long replayed; // bytes of records already stored by the current replay
+    private int pending;
+
+    /**
+     * Opens (or creates) the spool file and drops a record cut short by a crash.
+     *
+     * @param file the spool file
+     * @throws IOException if the file cannot be opened
+     */
+    public MessageSpool(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        while (size + Integer.BYTES <= length) {
+            int recordLength = read(size, Integer.BYTES).getInt();
+            if (recordLength < 0 || size + Integer.BYTES + recordLength > length) {
+                break;
+            }
+            size += Integer.BYTES + recordLength;
+            pending++;
+        }
+        if (size < length) {
+            channel.truncate(size);
+        }
+        if (pending > 0) {
+            System.out.println(pending + " spooled messages waiting for the database.");
+        }
+    }
+
+    /**
+     * @return true if no message is waiting to be replayed
+     */
+    public synchronized boolean isEmpty() {
+        return pending == 0;
+    }
+
+    /**
+     * @return the number of messages waiting to be replayed
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    /**
+     * Appends a message and forces it to disk.
+     *
+     * @param message         the message to spool
+     * @param clientMessageId the id the client generated for the message, null if none
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void append(Message message, String clientMessageId) throws IOException {
+        ByteBuffer record = encode(message, clientMessageId != null ? clientMessageId : UUID.randomUUID().toString());
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record, size + length - record.remaining());
+        }
+        channel.force(false);
+        size += length;
+        pending++;
+    }
+
+    /**
+     * Hands the spooled messages to the writer in order, including the ones appended during the
+     * replay, and empties the file once all of them are stored. If the writer fails the replay
+     * stops and the next one continues with the message that failed.
+     *
+     * @param writer stores a message with its client message id
+     * @return the number of messages replayed
+     * @throws SQLException if the writer fails
+     * @throws IOException  if the file cannot be read
+     */
+    public int replay(Writer writer) throws SQLException, IOException {
+        int count = 0;
+        while (true) {
+            long start;
+            long end;
+            synchronized (this) {
+                start = replayed;
+                end = size;
+                if (start == end) {
+                    channel.truncate(0);
+                    size = 0;
+                    replayed = 0;
+                    return count;
+                }
+            }
+            // records are read one at a time, the spool may be larger than the heap
+            for (long position = start; position < end; ) {
+                int length = read(position, Integer.BYTES).getInt();
+                ByteBuffer record = read(position + Integer.BYTES, length);
+                String clientMessageId = string(record);
+                writer.write(decode(record), clientMessageId);
+                position += Integer.BYTES + length;
+                synchronized (this) {
+                    replayed = position;
+                    pending--;
+                }
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads a region of the file.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of spool file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Encodes a message as a length prefixed record.
+     */
+    private static ByteBuffer encode(Message message, String clientMessageId) {
+        byte[][] fields = {bytes(clientMessageId), bytes(message.getSender()), bytes(message.getReceiver()),
+                bytes(message.getTitle()), bytes(message.getContent())};
+        // the attachment comes last, records spooled before attachments existed end after the expiry
+        byte[] attachment = bytes(message.getAttachment());
+        int length = Long.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + attachment.length;
+        for (byte[] field : fields) {
+            length += Integer.BYTES + field.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+        buffer.putInt(length);
+        for (byte[] field : fields) {
+            buffer.putInt(field.length);
+            buffer.put(field);
+        }
+        buffer.putLong(message.getTimestamp().toEpochSecond(ZoneOffset.UTC));
+        buffer.putInt(message.getTimestamp().getNano());
+        buffer.putLong(message.getExpiresAt() != null ? message.getExpiresAt().toEpochSecond(ZoneOffset.UTC) : Long.MIN_VALUE);
+        buffer.putInt(attachment.length);
+        buffer.put(attachment);
+        return buffer.flip();
+    }
+
+    /**
+     * Decodes the fields of a record that follow the client message id.
+     */
+    private static Message decode(ByteBuffer buffer) {
+        String sender = string(buffer);
+        String receiver = string(buffer);
+        String title = string(buffer);
+        String content = string(buffer);
+        LocalDateTime timestamp = LocalDateTime.ofEpochSecond(buffer.getLong(), buffer.getInt(), ZoneOffset.UTC);
+        long expiresAt = buffer.getLong();
+        String attachment = buffer.hasRemaining() ? string(buffer) : "";
+        return new Message(0, sender, receiver, title, content, timestamp,
+                expiresAt != Long.MIN_VALUE ? LocalDateTime.ofEpochSecond(expiresAt, 0, ZoneOffset.UTC) : null,
+                attachment.isEmpty() ? null : attachment);
+    }
+
+    private static byte[] bytes(String value) {
+        return (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] value = new byte[buffer.getInt()];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stores a replayed message.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        void write(Message message, String clientMessageId) throws SQLException;
+    }
+}
@@ -0,0 +1,184 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class keeps the usage statistics shown by the STATS command: messages sent per day and
+ * sender, and the messages and bytes in every user's inbox. They are counted in memory as messages
+ * are saved, and taken off again as messages expire, and added to the message_stats_daily and
+ * mailbox_stats summary tables in periodic batches, so STATS never has to aggregate the messages
+ * table itself. Counters are removed from
+ * the maps when they are drained, so a message counted during a flush is kept for the next one.
+ * Every server of a cluster adds its own counts to the same rows.
+ */
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MessageStats {
+
+    private final Map<SenderDay, Long> sent = new ConcurrentHashMap<>();
+    private final Map<String, Long> received = new ConcurrentHashMap<>();
+    private final Map<String, Long> receivedBytes = new ConcurrentHashMap<>();
+
+    /**
+     * Counts a saved message.
+     *
+     * @param sender   the username of the sender
+     * @param receiver the username of the receiver
+     * @param day      the day the message was sent
+     * @param bytes    the size of the message body as stored
+     */
+    public void record(String sender, String receiver, LocalDate day, long bytes) {
+        addSent(day, sender, 1);
+        addReceived(receiver, 1, bytes);
+    }
+
+    /**
+     * @param day      the day the messages were sent
+     * @param sender   the username of the sender
+     * @param messages the number of messages to add
+     */
+    public void addSent(LocalDate day, String sender, long messages) {
+        sent.merge(new SenderDay(day, sender), messages, Long::sum);
+    }
+
+    /**
+     * @param receiver the username of the receiver
+     * @param messages the number of messages to add, negative for deleted ones
+     * @param bytes    the size of their bodies as stored, negative for deleted ones
+     */
+    public void addReceived(String receiver, long messages, long bytes) {
+        received.merge(receiver, messages, Long::sum);
+        receivedBytes.merge(receiver, bytes, Long::sum);
+    }
+
+    /**
+     * Takes the counts collected so far out of these statistics.
+     *
+     * @return the counts taken, these statistics keep counting from zero
+     */
+    public MessageStats drain() {
+        MessageStats drained = new MessageStats();
+        for (SenderDay key : sent.keySet()) {
+            Long messages = sent.remove(key);
+            if (messages != null) {
+                drained.sent.merge(key, messages, Long::sum);
+            }
+        }
+        for (String receiver : received.keySet()) {
+            Long messages = received.remove(receiver);
+            Long bytes = receivedBytes.remove(receiver);
+            drained.addReceived(receiver, messages != null ? messages : 0, bytes != null ? bytes : 0);
+        }
+        return drained;
+    }
+
+    /**
+     * Adds counts back, e.g. the ones of a flush that failed.
+     *
+     * @param other the counts to add
+     */
+    public void addAll(MessageStats other) {
+        other.sent.forEach((key, messages) -> sent.merge(key, messages, Long::sum));
+        other.received.forEach((receiver, messages) -> addReceived(receiver, messages, other.receivedBytes.getOrDefault(receiver, 0L)));
+    }
+
+    /**
+     * @return true if nothing has been counted
+     */
+    public boolean isEmpty() {
+        return sent.isEmpty() && received.isEmpty();
+    }
+
+    /**
+     * Adds the counts to the summary tables. The caller decides on the transaction.
+     * Mailbox sizes never go below zero, e.g. for messages that expire before the backfill
+     * counted them, and are not written for users removed in the meantime.
+     *
+     * @param connection the connection to the primary database
+     * @return the number of summary rows written
+     * @throws SQLException if the summary tables cannot be written
+     */
+    public int write(Connection connection) throws SQLException {
+        String dailyQuery = "INSERT INTO message_stats_daily (day, sender, messages) VALUES (?, ?, ?) "
+                + "ON CONFLICT (day, sender) DO UPDATE SET messages = message_stats_daily.messages + EXCLUDED.messages";
+        String mailboxQuery = "INSERT INTO mailbox_stats (username, messages, bytes) "
+                + "SELECT username, GREATEST(0, ?), GREATEST(0, ?) FROM users WHERE username = ? AND removed_at IS NULL "
+                + "ON CONFLICT (username) DO UPDATE SET messages = GREATEST(0, mailbox_stats.messages + ?), "
+                + "bytes = GREATEST(0, mailbox_stats.bytes + ?)";
+        try (PreparedStatement daily = connection.prepareStatement(dailyQuery);
+             PreparedStatement mailbox = connection.prepareStatement(mailboxQuery)) {
+            for (Map.Entry<SenderDay, Long> entry : sent.entrySet()) {
+                daily.setDate(1, Date.valueOf(entry.getKey().day));
+                daily.setString(2, entry.getKey().sender);
+                daily.setLong(3, entry.getValue());
+                daily.addBatch();
+            }
+            for (Map.Entry<String, Long> entry : received.entrySet()) {
+                long bytes = receivedBytes.getOrDefault(entry.getKey(), 0L);
+                mailbox.setLong(1, entry.getValue());
+                mailbox.setLong(2, bytes);
+                mailbox.setString(3, entry.getKey());
+                mailbox.setLong(4, entry.getValue());
+                mailbox.setLong(5, bytes);
+                mailbox.addBatch();
+            }
+            daily.executeBatch();
+            mailbox.executeBatch();
+        }
+        return sent.size() + received.size();
+    }
+
+    /**
+     * Adds the counts not written yet to the results of a STATS query, so that it is up to date.
+     *
+     * @param from      the first day of the query
+     * @param to        the last day of the query
+     * @param perDay    the messages per day read from message_stats_daily
+     * @param perSender the messages per sender read from message_stats_daily
+     * @param mailboxes the messages and bytes per receiver read from mailbox_stats
+     */
+    public void addPendingTo(LocalDate from, LocalDate to, Map<LocalDate, Long> perDay, Map<String, Long> perSender,
+                             Map<String, long[]> mailboxes) {
+        sent.forEach((key, messages) -> {
+            if (!key.day.isBefore(from) && !key.day.isAfter(to)) {
+                perDay.merge(key.day, messages, Long::sum);
+                perSender.merge(key.sender, messages, Long::sum);
+            }
+        });
+        received.forEach((receiver, messages) -> {
+            long[] mailbox = mailboxes.computeIfAbsent(receiver, r -> new long[2]);
+            mailbox[0] += messages;
+            mailbox[1] += receivedBytes.getOrDefault(receiver, 0L);
+        });
+    }
+
+    /**
+     * The key of the messages sent by one user on one day.
+     */
+    private static final class SenderDay {
+
+        private final LocalDate day;
+        private final String sender;
+
+        SenderDay(LocalDate day, String sender) {
+            this.day = day;
+            this.sender = sender;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SenderDay other && day.equals(other.day) && sender.equals(other.sender);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(day, sender);
+        }
+    }
+}
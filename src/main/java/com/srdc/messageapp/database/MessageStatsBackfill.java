@@ -0,0 +1,184 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This tool adds the messages stored before the STATS summary tables existed to them. Servers
+ * only count the messages they save, so the older ones are counted once by this tool: every id
+ * below the backfill_below_id row of message_stats_meta, which dbs.sql sets when it creates the
+ * tables.
+ * Ids are handed out in send order, so id ranges are time partitions that are read through the
+ * primary key. The partitions of all shards are aggregated in parallel, each worker on its own
+ * connections, and the results are written in one transaction that also clears the marker, so
+ * running the tool twice counts nothing twice.
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class MessageStatsBackfill {
+
+    private static final long PARTITION_SIZE = 100_000;
+    private static final int WORKERS = 4;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final Connection primary;
+    private final MessageShards shards;
+    // each worker reads the primary on a connection of its own
+    private final ThreadLocal<Connection> workerConnections = new ThreadLocal<>();
+
+    /**
+     * Constructor for MessageStatsBackfill with parameters
+     *
+     * @param url       the URL of the primary database, shard 0
+     * @param shardUrls the URLs of the other message shards, may be empty
+     * @param user      the username for the database connections
+     * @param password  the password for the database connections
+     * @throws SQLException if the primary cannot be reached
+     */
+    public MessageStatsBackfill(String url, List<String> shardUrls, String user, String password) throws SQLException {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.primary = DriverManager.getConnection(url, user, password);
+        this.shards = new MessageShards(shardUrls, user, password);
+    }
+
+    /**
+     * Runs the backfill with the same database settings as the server.
+     * The shards are given as a comma separated list of JDBC URLs in the messageapp.shards
+     * system property, in the same order as for the servers.
+     *
+     * @param args the command line arguments, not used
+     * @throws Exception if a shard cannot be read
+     */
+    public static void main(String[] args) throws Exception {
+        String dbUrl = "jdbc:postgresql://localhost:5432/postgres";
+        String dbUser = "postgres";
+        String dbPassword = "5611Me_0";
+        String shardList = System.getProperty("messageapp.shards", "");
+        List<String> dbShardUrls = shardList.isBlank() ? List.of() : Arrays.asList(shardList.split(","));
+        long counted = new MessageStatsBackfill(dbUrl, dbShardUrls, dbUser, dbPassword).backfill();
+        System.out.println("Backfill done, " + counted + " messages counted.");
+    }
+
+    /**
+     * Counts the messages stored before the statistics existed, unless that was already done.
+     *
+     * @return the number of messages counted
+     * @throws Exception if a shard cannot be read or the summary tables cannot be written
+     */
+    public long backfill() throws Exception {
+        long belowId = readMarker();
+        if (belowId <= 1) {
+            System.out.println("Nothing to backfill.");
+            return 0;
+        }
+        MessageStats stats = new MessageStats();
+        List<Future<Long>> partitions = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+        long counted = 0;
+        try {
+            for (int shard = 0; shard < shards.size(); shard++) {
+                for (long fromId = 1; fromId < belowId; fromId += PARTITION_SIZE) {
+                    int partitionShard = shard;
+                    long partitionStart = fromId;
+                    long partitionEnd = Math.min(fromId + PARTITION_SIZE, belowId);
+                    partitions.add(workers.submit(() -> aggregate(partitionShard, partitionStart, partitionEnd, stats)));
+                }
+            }
+            for (Future<Long> partition : partitions) {
+                counted += partition.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        primary.setAutoCommit(false);
+        try (PreparedStatement clear = primary.prepareStatement(
+                "UPDATE message_stats_meta SET value = 0 WHERE name = 'backfill_below_id' AND value = ?")) {
+            clear.setLong(1, belowId);
+            if (clear.executeUpdate() == 0) {
+                // another run got there first, its counts are already in
+                primary.rollback();
+                System.out.println("Backfill already done by another run.");
+                return 0;
+            }
+            stats.write(primary);
+            primary.commit();
+        } catch (SQLException e) {
+            primary.rollback();
+            throw e;
+        }
+        return counted;
+    }
+
+    /**
+     * @return the id below which messages have not been counted yet, 0 if they all have
+     */
+    private long readMarker() throws SQLException {
+        String query = "SELECT value FROM message_stats_meta WHERE name = 'backfill_below_id'";
+        try (PreparedStatement stmt = primary.prepareStatement(query);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong("value") : 0;
+        }
+    }
+
+    /**
+     * Counts the messages of one id range of one shard into the statistics.
+     *
+     * @return the number of messages counted
+     */
+    private long aggregate(int shard, long fromId, long toId, MessageStats stats) throws SQLException {
+        Connection connection = connection(shard);
+        long counted = 0;
+        String sentQuery = "SELECT CAST(timestamp AS DATE) AS day, sender, COUNT(*) AS messages FROM messages "
+                + "WHERE id >= ? AND id < ? AND sender IS NOT NULL AND timestamp IS NOT NULL GROUP BY 1, 2";
+        try (PreparedStatement stmt = connection.prepareStatement(sentQuery)) {
+            stmt.setLong(1, fromId);
+            stmt.setLong(2, toId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    stats.addSent(rs.getDate("day").toLocalDate(), rs.getString("sender"), rs.getLong("messages"));
+                    counted += rs.getLong("messages");
+                }
+            }
+        }
+        String receivedQuery = "SELECT receiver, COUNT(*) AS messages, "
+                + "SUM(COALESCE(OCTET_LENGTH(content_z), OCTET_LENGTH(content), 0)) AS bytes FROM messages "
+                + "WHERE id >= ? AND id < ? AND receiver IS NOT NULL GROUP BY receiver";
+        try (PreparedStatement stmt = connection.prepareStatement(receivedQuery)) {
+            stmt.setLong(1, fromId);
+            stmt.setLong(2, toId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    stats.addReceived(rs.getString("receiver"), rs.getLong("messages"), rs.getLong("bytes"));
+                }
+            }
+        }
+        return counted;
+    }
+
+    /**
+     * @return the connection of the calling worker to a shard, opened on first use
+     */
+    private Connection connection(int shard) throws SQLException {
+        if (shard != 0) {
+            return shards.connection(shard, true);
+        }
+        Connection connection = workerConnections.get();
+        if (connection == null) {
+            connection = DriverManager.getConnection(url, user, password);
+            workerConnections.set(connection);
+        }
+        return connection;
+    }
+}
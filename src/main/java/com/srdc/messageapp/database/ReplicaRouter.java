@@ -0,0 +1,195 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class spreads read-only queries over the read replicas of the database.
+ * Replicas are picked round-robin and skipped while a background health check finds them
+ * unreachable. Like the primary, each replica has one shared connection and one connection per
+ * database executor thread that has a dedicated connection of its own.
+ * Replicas lag behind the primary, so a user who has just written is read from the primary for
+ * a short while (read-your-writes), e.g. their outbox right after SENDMSG.
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplicaRouter {
+
+    private static final long HEALTH_CHECK_MILLIS = 5000;
+    private static final long READ_YOUR_WRITES_MILLIS = 5000;
+
+    private final List<String> urls;
+    private final String user;
+    private final String password;
+    private final Set<String> unhealthy = ConcurrentHashMap.newKeySet();
+    // bumped whenever a replica fails a check, connections opened before are not reused
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, ReplicaConnection> shared = new ConcurrentHashMap<>();
+    private final ThreadLocal<Map<String, ReplicaConnection>> dedicated = ThreadLocal.withInitial(HashMap::new);
+    private final Map<String, Long> recentWriters = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for ReplicaRouter with parameters
+     *
+     * @param urls     the JDBC URLs of the read replicas, may be empty
+     * @param user     the username for the replica connections
+     * @param password the password for the replica connections
+     */
+    public ReplicaRouter(List<String> urls, String user, String password) {
+        this.urls = List.copyOf(urls);
+        this.user = user;
+        this.password = password;
+        for (String url : this.urls) {
+            generations.put(url, new AtomicLong());
+        }
+        if (!this.urls.isEmpty()) {
+            Thread checker = new Thread(this::checkHealthLoop, "replica-health");
+            checker.setDaemon(true);
+            checker.start();
+            System.out.println("Reading from " + this.urls.size() + " replicas.");
+        }
+    }
+
+    /**
+     * Remembers that a user has written to the primary, so that their next reads see the write.
+     *
+     * @param username the username of the writer
+     */
+    public void recordWrite(String username) {
+        if (!urls.isEmpty() && username != null) {
+            recentWriters.put(username, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Picks the connection a read of the given user should run on.
+     *
+     * @param username        the user whose writes the read must see, null if none
+     * @param dedicatedThread true if the calling thread has a dedicated primary connection
+     * @return a replica connection, or null if the read should go to the primary
+     */
+    public Connection connection(String username, boolean dedicatedThread) {
+        if (urls.isEmpty() || wroteRecently(username)) {
+            return null;
+        }
+        for (int attempt = 0; attempt < urls.size(); attempt++) {
+            String url = urls.get(Math.floorMod(next.getAndIncrement(), urls.size()));
+            if (unhealthy.contains(url)) {
+                continue;
+            }
+            try {
+                return open(url, dedicatedThread ? dedicated.get() : shared);
+            } catch (SQLException e) {
+                markUnhealthy(url, e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the user wrote within the read-your-writes window
+     */
+    private boolean wroteRecently(String username) {
+        if (username == null) {
+            return false;
+        }
+        Long writtenAt = recentWriters.get(username);
+        if (writtenAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - writtenAt < READ_YOUR_WRITES_MILLIS) {
+            return true;
+        }
+        recentWriters.remove(username, writtenAt);
+        return false;
+    }
+
+    /**
+     * Returns the cached connection to a replica, opening a new one if there is none or the
+     * replica has failed a health check since it was opened.
+     */
+    private Connection open(String url, Map<String, ReplicaConnection> connections) throws SQLException {
+        long generation = generations.get(url).get();
+        synchronized (connections) {
+            ReplicaConnection cached = connections.get(url);
+            if (cached != null && cached.generation == generation) {
+                return cached.connection;
+            }
+            if (cached != null) {
+                closeQuietly(cached.connection);
+            }
+            Connection connection = DriverManager.getConnection(url, user, password);
+            connection.setReadOnly(true);
+            connections.put(url, new ReplicaConnection(connection, generation));
+            return connection;
+        }
+    }
+
+    /**
+     * Checks every replica with a fresh connection each period.
+     */
+    @SuppressWarnings("BusyWait")
+    private void checkHealthLoop() {
+        while (true) {
+            try {
+                Thread.sleep(HEALTH_CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (String url : urls) {
+                try (Connection connection = DriverManager.getConnection(url, user, password);
+                     Statement stmt = connection.createStatement()) {
+                    stmt.setQueryTimeout(2);
+                    stmt.execute("SELECT 1");
+                    if (unhealthy.remove(url)) {
+                        System.out.println("Replica " + url + " is back, reading from it again.");
+                    }
+                } catch (SQLException e) {
+                    markUnhealthy(url, e);
+                }
+            }
+            recentWriters.values().removeIf(writtenAt -> System.currentTimeMillis() - writtenAt >= READ_YOUR_WRITES_MILLIS);
+        }
+    }
+
+    /**
+     * Stops routing reads to a replica until it passes a health check again.
+     */
+    private void markUnhealthy(String url, SQLException e) {
+        if (unhealthy.add(url)) {
+            generations.get(url).incrementAndGet();
+            System.err.println("Replica " + url + " is unavailable, reading from the primary: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+            // the replica is being replaced anyway
+        }
+    }
+
+    /**
+     * A cached replica connection and the replica generation it was opened in.
+     */
+    private static class ReplicaConnection {
+
+        private final Connection connection;
+        private final long generation;
+
+        ReplicaConnection(Connection connection, long generation) {
+            this.connection = connection;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This tool moves messages to the shard their receiver hashes to, e.g. after a shard was added
+ * to the messageapp.shards system property. It walks every shard in id order and copies the
+ * messages that belong elsewhere in batches, deleting each batch from its old shard only after
+ * the copy is stored. A run that is cut short can simply be started again.
+ * Until the run is over, the older messages of the inboxes that moved are missing from their
+ * new shard, so it is best run right after restarting the servers with the new shard list.
+ */
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ShardRebalancer {
+
+    private static final int BATCH_SIZE = 1000;
+
+    private final Connection primary;
+    private final MessageShards shards;
+
+    /**
+     * Constructor for ShardRebalancer with parameters
+     *
+     * @param url       the URL of the primary database, shard 0
+     * @param shardUrls the URLs of all the other shards, the new ones included
+     * @param user      the username for the database connections
+     * @param password  the password for the database connections
+     * @throws SQLException if the primary cannot be reached
+     */
+    public ShardRebalancer(String url, List<String> shardUrls, String user, String password) throws SQLException {
+        this.primary = DriverManager.getConnection(url, user, password);
+        this.shards = new MessageShards(shardUrls, user, password);
+    }
+
+    /**
+     * Runs the rebalancer with the same database settings as the server.
+     * The shards are given as a comma separated list of JDBC URLs in the messageapp.shards
+     * system property, in the same order as for the servers.
+     *
+     * @param args the command line arguments, not used
+     * @throws Exception if a shard cannot be reached
+     */
+    public static void main(String[] args) throws Exception {
+        String dbUrl = "jdbc:postgresql://localhost:5432/postgres";
+        String dbUser = "postgres";
+        String dbPassword = "5611Me_0";
+        String shardList = System.getProperty("messageapp.shards", "");
+        List<String> dbShardUrls = shardList.isBlank() ? List.of() : Arrays.asList(shardList.split(","));
+        long moved = new ShardRebalancer(dbUrl, dbShardUrls, dbUser, dbPassword).rebalance();
+        System.out.println("Rebalancing done, " + moved + " messages moved.");
+    }
+
+    /**
+     * Moves every message that is not on the shard of its receiver. Messages whose receiver was
+     * removed stay where they are, they are only read through the sender's outbox, which is read
+     * from every shard.
+     *
+     * @return the number of messages moved
+     * @throws SQLException if a shard fails
+     */
+    public long rebalance() throws SQLException {
+        long moved = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            long shardMoved = 0;
+            long afterId = 0;
+            while (true) {
+                List<Row> rows = readBatch(shard, afterId);
+                if (rows.isEmpty()) {
+                    break;
+                }
+                afterId = rows.get(rows.size() - 1).id;
+                Map<Integer, List<Row>> misplaced = new HashMap<>();
+                for (Row row : rows) {
+                    int target = shards.shardFor(row.receiver);
+                    if (target != shard) {
+                        misplaced.computeIfAbsent(target, t -> new ArrayList<>()).add(row);
+                    }
+                }
+                for (Map.Entry<Integer, List<Row>> entry : misplaced.entrySet()) {
+                    copy(entry.getKey(), entry.getValue());
+                    delete(shard, entry.getValue());
+                    shardMoved += entry.getValue().size();
+                }
+            }
+            System.out.println("Shard " + shard + ": " + shardMoved + " messages moved out.");
+            moved += shardMoved;
+        }
+        return moved;
+    }
+
+    /**
+     * @return the next batch of messages with a receiver on a shard, in id order
+     */
+    private List<Row> readBatch(int shard, long afterId) throws SQLException {
+        String query = "SELECT id, sender, receiver, title, content, timestamp, client_msg_id, expires_at, attachment, content_z FROM messages "
+                + "WHERE id > ? AND receiver IS NOT NULL ORDER BY id LIMIT ?";
+        List<Row> rows = new ArrayList<>();
+        try (PreparedStatement stmt = connection(shard).prepareStatement(query)) {
+            stmt.setLong(1, afterId);
+            stmt.setInt(2, BATCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rows.add(new Row(rs.getLong("id"), rs.getString("sender"), rs.getString("receiver"),
+                            rs.getString("title"), rs.getString("content"), rs.getTimestamp("timestamp"),
+                            rs.getString("client_msg_id"), rs.getTimestamp("expires_at"), rs.getString("attachment"),
+                            rs.getBytes("content_z")));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Stores messages on their new shard with their ids. Messages already copied by an earlier,
+     * interrupted run are skipped.
+     */
+    private void copy(int shard, List<Row> rows) throws SQLException {
+        String query = "INSERT INTO messages (id, sender, receiver, title, content, timestamp, client_msg_id, expires_at, attachment, content_z) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT DO NOTHING";
+        try (PreparedStatement stmt = connection(shard).prepareStatement(query)) {
+            for (Row row : rows) {
+                stmt.setLong(1, row.id);
+                stmt.setString(2, row.sender);
+                stmt.setString(3, row.receiver);
+                stmt.setString(4, row.title);
+                stmt.setString(5, row.content);
+                stmt.setTimestamp(6, row.timestamp);
+                stmt.setString(7, row.clientMessageId);
+                stmt.setTimestamp(8, row.expiresAt);
+                stmt.setString(9, row.attachment);
+                stmt.setBytes(10, row.compressedContent);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * Deletes moved messages from their old shard.
+     */
+    private void delete(int shard, List<Row> rows) throws SQLException {
+        Long[] ids = new Long[rows.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = rows.get(i).id;
+        }
+        Connection connection = connection(shard);
+        try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM messages WHERE id = ANY (?)")) {
+            stmt.setArray(1, connection.createArrayOf("bigint", ids));
+            stmt.executeUpdate();
+        }
+    }
+
+    private Connection connection(int shard) throws SQLException {
+        return shard == 0 ? primary : shards.connection(shard, false);
+    }
+
+    /**
+     * A message row as it is copied between shards.
+     */
+    private static class Row {
+
+        private final long id;
+        private final String sender;
+        private final String receiver;
+        private final String title;
+        private final String content;
+        private final Timestamp timestamp;
+        private final String clientMessageId;
+        private final Timestamp expiresAt;
+        private final String attachment;
+        private final byte[] compressedContent;
+
+        Row(long id, String sender, String receiver, String title, String content, Timestamp timestamp,
+            String clientMessageId, Timestamp expiresAt, String attachment, byte[] compressedContent) {
+            this.id = id;
+            this.sender = sender;
+            this.receiver = receiver;
+            this.title = title;
+            this.content = content;
+            this.timestamp = timestamp;
+            this.clientMessageId = clientMessageId;
+            this.expiresAt = expiresAt;
+            this.attachment = attachment;
+            this.compressedContent = compressedContent;
+        }
+    }
+}
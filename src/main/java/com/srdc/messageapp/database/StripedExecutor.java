@@ -0,0 +1,136 @@
+package com.srdc.messageapp.database;
+
+/**
+ * An executor made of a fixed number of single threaded stripes.
+ * Every task is submitted with a key and runs on the stripe chosen by the hash of the key,
+ * so tasks with the same key run one after the other in submission order, while tasks with
+ * different keys can run in parallel on different stripes.
+ * Each stripe has a bounded queue; when it is full the returned future fails with a
+ * RejectedExecutionException. How long the oldest queued task has been waiting is exposed, so
+ * that callers can shed load before the queues fill up.
+ */
+
+import java.util.concurrent.*;
+
+public class StripedExecutor {
+
+    private final ThreadPoolExecutor[] stripes;
+
+    /**
+     * Constructor for StripedExecutor with parameters
+     *
+     * @param name        the prefix of the stripe thread names
+     * @param stripes     the number of stripes
+     * @param queueSize   the number of tasks that may wait on each stripe
+     * @param threadSetup run once on each stripe thread before its first task
+     */
+    public StripedExecutor(String name, int stripes, int queueSize, Runnable threadSetup) {
+        this.stripes = new ThreadPoolExecutor[stripes];
+        for (int i = 0; i < stripes; i++) {
+            String threadName = name + "-" + i;
+            this.stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                Thread thread = new Thread(() -> {
+                    threadSetup.run();
+                    runnable.run();
+                }, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Runs a task on the stripe of its key.
+     *
+     * @param key  the ordering key, tasks with equal keys run in submission order
+     * @param task the task to run
+     * @return a future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> submit(Object key, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            stripes[Math.floorMod(key.hashCode(), stripes.length)].execute(new QueuedTask(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return how long the oldest task queued on any stripe has been waiting, in milliseconds
+     */
+    public long getQueueWaitMillis() {
+        long wait = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            wait = Math.max(wait, QueuedTask.oldestWaitMillis(stripe));
+        }
+        return wait;
+    }
+
+    /**
+     * Stops accepting tasks. Queued tasks are still run.
+     */
+    public void shutdown() {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the tasks queued before {@link #shutdown()} to finish.
+     *
+     * @param timeout how long to wait
+     * @param unit    the unit of the timeout
+     * @return true if every stripe finished in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ExecutorService stripe : stripes) {
+            if (!stripe.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A task that remembers when it was queued, so the wait at the head of a queue can be measured.
+     */
+    static class QueuedTask implements Runnable {
+
+        private final long queuedAt = System.nanoTime();
+        private final Runnable task;
+
+        /**
+         * Constructor for QueuedTask with parameters
+         *
+         * @param task the task to run
+         */
+        QueuedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        /**
+         * @param executor an executor whose tasks are queued as QueuedTasks
+         * @return how long the task at the head of its queue has been waiting, 0 if none is waiting
+         */
+        static long oldestWaitMillis(ThreadPoolExecutor executor) {
+            Runnable head = executor.getQueue().peek();
+            return head instanceof QueuedTask queued
+                    ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued.queuedAt) : 0;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This tool checks under load that StripedExecutor keeps the order of every conversation.
+ * Many threads submit the sends of many (sender, receiver) conversations at once, keyed the same
+ * way AsyncDatabaseHandler keys them, and every task carries the sequence number of its send
+ * within its conversation. Each conversation is submitted by one thread, so its sequence numbers
+ * must run in exactly that order; tasks that find a gap or a repeat count as violations.
+ * A submit rejected by a full stripe is retried before the next send of the conversation, the way
+ * a caller has to keep its own order. The tool exits with status 1 if any conversation came out
+ * of order or incomplete.
+ */
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StripedExecutorStress {
+
+    private final int threads;
+    private final int conversations;
+    private final int messages;
+    private final int stripes;
+    private final int queueSize;
+    // last sequence number seen per conversation, only written by the stripe of the conversation
+    private final int[] lastSeen;
+    private final AtomicLong violations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Constructor for StripedExecutorStress with parameters
+     *
+     * @param threads       the number of submitting threads
+     * @param conversations the number of (sender, receiver) conversations
+     * @param messages      the number of sends per conversation
+     * @param stripes       the number of stripes of the executor
+     * @param queueSize     the queue size of each stripe
+     */
+    public StripedExecutorStress(int threads, int conversations, int messages, int stripes, int queueSize) {
+        this.threads = threads;
+        this.conversations = conversations;
+        this.messages = messages;
+        this.stripes = stripes;
+        this.queueSize = queueSize;
+        this.lastSeen = new int[conversations];
+    }
+
+    /**
+     * Runs the stress test. Optional arguments: threads, conversations, sends per conversation,
+     * stripes and queue size per stripe, 32 200 500 4 64 by default.
+     *
+     * @param args the command line arguments
+     * @throws InterruptedException if interrupted while waiting for the submitters
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int conversations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int stripes = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int queueSize = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        boolean passed = new StripedExecutorStress(threads, conversations, messages, stripes, queueSize).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Submits every send, waits for all of them and checks every conversation.
+     *
+     * @return true if every conversation ran completely and in order
+     * @throws InterruptedException if interrupted while waiting for the submitters
+     */
+    public boolean run() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor("stress", stripes, queueSize, () -> {
+        });
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] submitters = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            submitters[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    submitConversations(executor, first);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "stress-submitter-" + t);
+            submitters[t].start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            System.err.println("Stripes did not finish within a minute.");
+            return false;
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+        int incomplete = 0;
+        for (int c = 0; c < conversations; c++) {
+            if (lastSeen[c] != messages) {
+                incomplete++;
+                System.err.println("Conversation " + c + " ended at " + lastSeen[c] + " of " + messages);
+            }
+        }
+        long total = (long) conversations * messages;
+        System.out.println(String.format("%d sends of %d conversations from %d threads on %d stripes in %d ms (%.0f/s), "
+                        + "%d rejected submits retried, %d order violations, %d incomplete conversations",
+                total, conversations, threads, stripes, elapsedMillis, total * 1000.0 / Math.max(1, elapsedMillis),
+                rejections.get(), violations.get(), incomplete));
+        boolean passed = violations.get() == 0 && incomplete == 0;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /**
+     * Submits the sends of the conversations owned by one thread, interleaving them round robin
+     * so that the stripes see the conversations mixed.
+     *
+     * @param executor the executor under test
+     * @param first    the first conversation of this thread, the others follow every threads
+     * @throws InterruptedException if interrupted while backing off from a full stripe
+     */
+    private void submitConversations(StripedExecutor executor, int first) throws InterruptedException {
+        for (int seq = 1; seq <= messages; seq++) {
+            for (int c = first; c < conversations; c += threads) {
+                String sender = "sender" + c;
+                String receiver = "receiver" + (c % 7);
+                int conversation = c;
+                int expected = seq;
+                while (true) {
+                    CompletableFuture<Void> future = executor.submit(Objects.hash(sender, receiver), () -> {
+                        record(conversation, expected);
+                        return null;
+                    });
+                    // a rejected submit fails at once; anything else is queued and keeps its place
+                    if (!future.isCompletedExceptionally()) {
+                        break;
+                    }
+                    rejections.incrementAndGet();
+                    Thread.sleep(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a send runs right after the previous send of its conversation, and does a
+     * little work so that the submitters get ahead of the stripes.
+     *
+     * @param conversation the conversation of the send
+     * @param seq          the sequence number of the send within its conversation
+     */
+    private void record(int conversation, int seq) {
+        if (lastSeen[conversation] != seq - 1) {
+            violations.incrementAndGet();
+            System.err.println("Conversation " + conversation + " ran " + seq + " after " + lastSeen[conversation]);
+        }
+        lastSeen[conversation] = seq;
+        long until = System.nanoTime() + ThreadLocalRandom.current().nextInt(2_000);
+        while (System.nanoTime() < until) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.srdc.messageapp.database;
+
+/**
+ * This class finishes the removal of tombstoned users in the background.
+ * A removed user is first marked with removed_at, which rejects their logins and messages at once.
+ * The worker then detaches the user's messages in small batches, so that no single statement locks
+ * a large part of the messages table, and finally deletes the user row.
+ * Since the tombstone is stored in the database, removals interrupted by a restart are resumed.
+ */
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class UserRemovalWorker {
+
+    private static final int BATCH_SIZE = 500;
+
+    private final DatabaseHandler dbHandler;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "user-removal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for UserRemovalWorker with parameters
+     *
+     * @param dbHandler the database handler to run the batches with
+     */
+    public UserRemovalWorker(DatabaseHandler dbHandler) {
+        this.dbHandler = dbHandler;
+    }
+
+    /**
+     * Queues the removal of a tombstoned user. Queuing a user twice has no effect.
+     *
+     * @param username the username of the tombstoned user
+     */
+    public void submit(String username) {
+        Progress entry = new Progress();
+        if (progress.putIfAbsent(username, entry) == null) {
+            executor.submit(() -> remove(username, entry));
+        }
+    }
+
+    /**
+     * @return the progress of every removal since the server started, by username
+     */
+    public Map<String, Progress> getProgress() {
+        return Map.copyOf(progress);
+    }
+
+    /**
+     * Detaches the messages of the user batch by batch and deletes the user row.
+     * On error the removal stays tombstoned and is retried on the next start.
+     */
+    private void remove(String username, Progress entry) {
+        try {
+            int detached;
+            do {
+                detached = dbHandler.detachMessagesBatch(username, true, BATCH_SIZE);
+                entry.detached.addAndGet(detached);
+            } while (detached == BATCH_SIZE);
+            do {
+                detached = dbHandler.detachMessagesBatch(username, false, BATCH_SIZE);
+                entry.detached.addAndGet(detached);
+            } while (detached == BATCH_SIZE);
+            dbHandler.deleteTombstonedUser(username);
+            dbHandler.invalidateCaches(username);
+            entry.status = "done";
+            System.out.println("User " + username + " removed, " + entry.detached.get() + " messages detached.");
+        } catch (SQLException e) {
+            entry.status = "failed: " + e.getMessage();
+            System.err.println("Error removing user " + username + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Progress of a single removal.
+     */
+    public static class Progress {
+
+        private final AtomicLong detached = new AtomicLong();
+        private volatile String status = "running";
+
+        /**
+         * @return the number of messages detached so far
+         */
+        public long getDetached() {
+            return detached.get();
+        }
+
+        /**
+         * @return running, done or the reason of the failure
+         */
+        public String getStatus() {
+            return status;
+        }
+    }
+}
@@ -2,17 +2,22 @@ package com.srdc.messageapp.models;
 
 /**
  * Represents a message with sender, receiver, title, content, and timestamp.
+ * A message may carry an expiry time after which it is deleted, and an attachment, which is
+ * referenced by the hash of its content in the blob store.
  */
 
 import java.time.LocalDateTime;
 
 public class Message {
 
+    private final long id;
     private final String sender;
     private final String receiver;
     private final String title;
     private final String content;
     private final LocalDateTime timestamp;
+    private final LocalDateTime expiresAt;
+    private final String attachment;
 
     /**
      * Constructs for a Message object with parameters.
@@ -24,15 +29,72 @@ public class Message {
      * @param timestamp the time message was sent
      */
     public Message(String sender, String receiver, String title, String content, LocalDateTime timestamp) {
+        this(0, sender, receiver, title, content, timestamp);
+    }
+
+    /**
+     * Constructs for a Message object that is stored in the database.
+     *
+     * @param id        the id of the message in the database
+     * @param sender    the sender of the message
+     * @param receiver  the receiver of the message
+     * @param title     the title of the message
+     * @param content   the content of the message
+     * @param timestamp the time message was sent
+     */
+    public Message(long id, String sender, String receiver, String title, String content, LocalDateTime timestamp) {
+        this(id, sender, receiver, title, content, timestamp, null);
+    }
+
+    /**
+     * Constructs for a Message object that expires.
+     *
+     * @param id        the id of the message in the database, 0 if it is not stored yet
+     * @param sender    the sender of the message
+     * @param receiver  the receiver of the message
+     * @param title     the title of the message
+     * @param content   the content of the message
+     * @param timestamp the time message was sent
+     * @param expiresAt the time the message is deleted, null if it never expires
+     */
+    public Message(long id, String sender, String receiver, String title, String content, LocalDateTime timestamp,
+                   LocalDateTime expiresAt) {
+        this(id, sender, receiver, title, content, timestamp, expiresAt, null);
+    }
+
+    /**
+     * Constructs for a Message object that may expire and may have an attachment.
+     *
+     * @param id         the id of the message in the database, 0 if it is not stored yet
+     * @param sender     the sender of the message
+     * @param receiver   the receiver of the message
+     * @param title      the title of the message
+     * @param content    the content of the message
+     * @param timestamp  the time message was sent
+     * @param expiresAt  the time the message is deleted, null if it never expires
+     * @param attachment the SHA-256 hash of the attached blob, null if there is none
+     */
+    public Message(long id, String sender, String receiver, String title, String content, LocalDateTime timestamp,
+                   LocalDateTime expiresAt, String attachment) {
+        this.id = id;
         this.sender = sender;
         this.receiver = receiver;
         this.title = title;
         this.content = content;
         this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        this.attachment = attachment;
     }
 
     // GETTERS
 
+    /**
+     * @return the id of the message, 0 if it is not stored yet
+     */
+    public long getId() {
+        return id;
+    }
+
     /**
      * @return the sender of the message
      */
@@ -67,4 +129,25 @@ public class Message {
     public LocalDateTime getTimestamp() {
         return timestamp;
     }
+
+    /**
+     * @return the time the message is deleted, null if it never expires
+     */
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return the SHA-256 hash of the attached blob, null if there is none
+     */
+    public String getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * @return true if the message has an expiry time that has passed
+     */
+    public boolean isExpired() {
+        return expiresAt != null && !expiresAt.isAfter(LocalDateTime.now());
+    }
 }
@@ -8,44 +8,130 @@ package com.srdc.messageapp.server;
  * Implying that every client connection will be handled in a separate thread.
  */
 
+import com.srdc.messageapp.database.AsyncDatabaseHandler;
+import com.srdc.messageapp.database.BlobStore;
+import com.srdc.messageapp.database.ContentCompressor;
 import com.srdc.messageapp.database.DatabaseHandler;
+import com.srdc.messageapp.database.UserRemovalWorker;
 import com.srdc.messageapp.models.Message;
 import com.srdc.messageapp.models.User;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
-import java.util.List;
-import java.util.Objects;
-import java.util.StringTokenizer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 @SuppressWarnings("BooleanMethodIsAlwaysInverted")
 public class ClientHandler extends Thread {
 
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
     private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    static final int OUTPUT_BUFFER_SIZE = 8192; // responses larger than this are flushed in chunks, see OutputFlushBenchmark
+    // per command limits, shared by all connections so that a user cannot bypass them by reconnecting
+    private static final Map<String, RateLimiter> RATE_LIMITERS = Map.ofEntries(
+            Map.entry("LOGIN", new RateLimiter(1, 5)),
+            Map.entry("RESUME", new RateLimiter(1, 5)),
+            Map.entry("SENDMSG", new RateLimiter(5, 20)),
+            Map.entry("GETINBOX", new RateLimiter(1, 5)),
+            Map.entry("GETOUTBOX", new RateLimiter(1, 5)),
+            Map.entry("LISTUSERS", new RateLimiter(0.5, 3)),
+            Map.entry("WHOISONLINE", new RateLimiter(1, 5)),
+            Map.entry("POST", new RateLimiter(5, 20)),
+            Map.entry("GETCHANNEL", new RateLimiter(1, 5)),
+            Map.entry("GETCONVERSATION", new RateLimiter(2, 10)),
+            Map.entry("GETATTACHMENT", new RateLimiter(1, 5)),
+            Map.entry("STATS", new RateLimiter(0.5, 3)));
+    // every upload may be a new 25 MB blob; checked in handleAttach, which drains the chunks of a refused upload
+    private static final RateLimiter ATTACH_LIMITER = new RateLimiter(0.1, 5);
+    private static final AtomicInteger ACTIVE_CONNECTIONS = new AtomicInteger();
+    // sender + client message id -> time of the original send, answers most retries without a query
+    private static final RecentIdWindow<LocalDateTime> SENT_MESSAGE_IDS = new RecentIdWindow<>(100_000);
+    private static final int LIST_USERS_PAGE_SIZE = 100;
+    private static final int LIST_USERS_MAX_PAGE_SIZE = 1000;
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+    private static final long MAX_MESSAGE_TTL_SECONDS = 365L * 24 * 60 * 60;
+    private static final int CHANNEL_PAGE_SIZE = 100;
+    private static final int CONVERSATION_PAGE_SIZE = 50;
+    private static final int STATS_DEFAULT_DAYS = 7;
+    private static final int USER_FIELDS = 9; // ADDUSER and UPDATEUSER
+    private static final int STATS_TOP = 10;
+    private static final int MAX_CHANNEL_NAME_LENGTH = 50;
+    private static final long MAX_ATTACHMENT_BYTES = 25L * 1024 * 1024;
+    // twice the base64 line of the client's 48 KiB chunks, longer lines are refused unread
+    private static final int MAX_ATTACHMENT_LINE_LENGTH = 128 * 1024;
+    private static final int IMPORT_MAX_REPORTED_ERRORS = 1000;
+    // a valid row fits easily, longer lines are cut while they are read and the row is rejected
+    private static final int MAX_IMPORT_LINE_LENGTH = 1024;
+    // the VARCHAR sizes of the users columns, by import field; 0 for the fields checked by their format
+    private static final int[] IMPORT_FIELD_LENGTHS = {50, 50, 50, 0, 0, 100, 100, 100, 0};
+    private static final String[] IMPORT_FIELD_NAMES = {"username", "name", "surname", "birthdate", "gender", "email",
+            "location", "password", "isAdmin"};
+    // message lists from this many characters on are sent deflated to clients that asked for it
+    private static final ContentCompressor TRANSFER_COMPRESSION = new ContentCompressor("Transfer", 1024, Deflater.BEST_SPEED);
     private final Socket socket;
     private final DatabaseHandler dbHandler;
+    private final AsyncDatabaseHandler asyncDbHandler;
+    private final ClusterNode cluster;
+    private final ResumeTokens resumeTokens;
+    private final BlobStore blobStore;
+    private final ConnectionReaper reaper;
     private BufferedReader input;
     private PrintWriter output;
-    private User currentUser;
-    private boolean running = true;
+    // cleared by the cluster threads when the user is kicked or its credentials are revoked
+    private volatile User currentUser;
+    // epoch second of the password login this session started with, kept across resumes
+    private long sessionStart;
+    private volatile boolean running = true;
+    // System.nanoTime() of the last line read, the reaper closes the connection when it gets too old
+    private volatile long lastActivity = System.nanoTime();
+    // true while the handler thread waits for the next line, false while it works on a command
+    private volatile boolean reading;
+    private Thread validityChecker;
+    // set by COMPRESS:::deflate, read by the database threads that send the message lists
+    private volatile boolean compressTransfers;
 
     /**
      * Constructor for ClientHandler with parameters
      *
-     * @param socket    the client socket
-     * @param dbHandler the database handler
+     * @param socket         the client socket
+     * @param dbHandler      the database handler
+     * @param asyncDbHandler the non-blocking database facade
+     * @param cluster        the cluster node sessions are registered with
+     * @param resumeTokens   the signer of the tokens sessions are resumed with
+     * @param blobStore      the store of message attachments
+     * @param reaper         the reaper that closes the connection if the client stops sending heartbeats
      */
-    public ClientHandler(Socket socket, DatabaseHandler dbHandler) {
+    public ClientHandler(Socket socket, DatabaseHandler dbHandler, AsyncDatabaseHandler asyncDbHandler, ClusterNode cluster,
+                         ResumeTokens resumeTokens, BlobStore blobStore, ConnectionReaper reaper) {
         this.socket = socket;
         this.dbHandler = dbHandler;
+        this.asyncDbHandler = asyncDbHandler;
+        this.cluster = cluster;
+        this.resumeTokens = resumeTokens;
+        this.blobStore = blobStore;
+        this.reaper = reaper;
+        ACTIVE_CONNECTIONS.incrementAndGet();
         try {
             input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
+            // no autoflush, the response of each command is flushed once in run()
+            output = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream()), OUTPUT_BUFFER_SIZE), false);
         } catch (IOException e) {
             System.err.println("Error initializing I/O streams: " + e.getMessage());
         }
@@ -54,69 +140,312 @@ public class ClientHandler extends Thread {
     /**
      * The run method is called when the thread is started.
      * It reads input from the client, processes the request, and sends a response
-     * back.
+     * back. The whole response of a command is flushed to the socket at once.
+     * However the connection ends, its slot, session and threads are released.
      */
     @Override
     public void run() {
-        new Thread(this::checkUserValidity).start();
-
-        String received;
-        while (running) {
-            try {
-                received = input.readLine();
-                if (received == null) {
-                    break;
-                }
+        validityChecker = new Thread(this::checkUserValidity);
+        validityChecker.start();
+        reaper.register(this);
+        try {
+            String received;
+            while (running && (received = readLine()) != null) {
                 StringTokenizer st = new StringTokenizer(received, ":");
-
-                String action = st.nextToken();
-                switch (action.toUpperCase()) {
-                    case "LOGIN" -> handleLogin(st);
-                    case "LOGOUT" -> handleLogout();
-                    case "SENDMSG" -> handleSendMsg(st);
-                    case "ADDUSER" -> handleAddUser(st);
-                    case "REMOVEUSER" -> handleRemoveUser(st);
-                    case "UPDATEUSER" -> handleUpdateUser(st);
-                    case "LISTUSERS" -> handleListUsers();
-                    case "GETINBOX" -> handleGetMessages(true);
-                    case "GETOUTBOX" -> handleGetMessages(false);
-                    default -> output.println("\nUnknown command");
+                if (!st.hasMoreTokens()) {
+                    continue; // an empty line carries no command
                 }
-            } catch (IOException e) {
+                String action = st.nextToken().toUpperCase();
+                CommandEvent event = new CommandEvent();
+                event.begin();
+                if (!acquirePermit(action, received)) {
+                    reply("\nRate limit exceeded for " + action + ". Please slow down.");
+                    flush();
+                    continue;
+                }
+                User user = currentUser;
+                try {
+                    switch (action) {
+                        case "LOGIN" -> handleLogin(st);
+                        case "RESUME" -> handleResume(st);
+                        case "LOGOUT" -> handleLogout();
+                        case "SENDMSG" -> handleSendMsg(st);
+                        case "ADDUSER" -> handleAddUser(st);
+                        case "REMOVEUSER" -> handleRemoveUser(st);
+                        case "REMOVALS" -> handleRemovals();
+                        case "UPDATEUSER" -> handleUpdateUser(st);
+                        case "IMPORTUSERS" -> handleImportUsers();
+                        case "LISTUSERS" -> handleListUsers(st);
+                        case "GETINBOX" -> handleGetMessages(st, true);
+                        case "GETCONVERSATION" -> handleGetConversation(st);
+                        case "GETOUTBOX" -> handleGetMessages(st, false);
+                        case "CACHESTATS" -> handleCacheStats();
+                        case "STATS" -> handleStats(st);
+                        case "WHOISONLINE" -> handleWhoIsOnline(st);
+                        case "JOIN" -> handleJoin(st);
+                        case "POST" -> handlePost(st);
+                        case "GETCHANNEL" -> handleGetChannel(st);
+                        case "ATTACH" -> handleAttach(st);
+                        case "GETATTACHMENT" -> handleGetAttachment(st);
+                        case "COMPRESS" -> handleCompress(st);
+                        case "PING" -> reply("PONG");
+                        default -> reply("\nUnknown command");
+                    }
+                } catch (RuntimeException e) {
+                    // a malformed request fails on its own, the connection goes on
+                    System.err.println("Error handling " + action + ": " + e);
+                    reply("\nInvalid " + action + " request.");
+                }
+                flush();
+                event.end();
+                if (event.shouldCommit()) {
+                    event.action = action;
+                    event.user = user != null ? user.getUsername() : (currentUser != null ? currentUser.getUsername() : null);
+                    event.payloadSize = received.length();
+                    event.commit();
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
                 System.err.println("Error reading client input: " + e.getMessage());
-                break;
             }
+        } finally {
+            // the validity check thread would otherwise poll the database for this user forever
+            running = false;
+            validityChecker.interrupt();
+            reaper.unregister(this);
+            ConnectionEvent.emit("closed", String.valueOf(socket.getRemoteSocketAddress()), ACTIVE_CONNECTIONS.decrementAndGet());
+            User user = currentUser;
+            if (user != null) {
+                cluster.sessionClosed(user.getUsername(), this);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing socket: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of client connections currently being handled
+     */
+    public static int getActiveConnections() {
+        return ACTIVE_CONNECTIONS.get();
+    }
+
+    /**
+     * Reads a line from the client and records it as activity, so that a long upload or import
+     * is not taken for an idle connection.
+     *
+     * @return the line, null at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private String readLine() throws IOException {
+        reading = true;
+        try {
+            return input.readLine();
+        } finally {
+            reading = false;
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * Reads a line from the client like {@link #readLine()}, but keeps at most maxLength + 1
+     * characters of it: the rest of a longer line is read and dropped, so a client cannot make
+     * the server hold one huge line in memory.
+     *
+     * @param maxLength the longest line the caller accepts
+     * @return the line, longer than maxLength if it was cut, null at the end of the stream
+     * @throws IOException if reading fails
+     */
+    private String readLine(int maxLength) throws IOException {
+        reading = true;
+        try {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != -1 && c != '\n') {
+                if (c != '\r' && line.length() <= maxLength) {
+                    line.append((char) c);
+                }
+            }
+            return c == -1 && line.length() == 0 ? null : line.toString();
+        } finally {
+            reading = false;
+            lastActivity = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return the System.nanoTime() of the last line read from the client, or now while the
+     * handler is busy with a command, e.g. a slow GETATTACHMENT or an IMPORTUSERS waiting for
+     * its last chunks, during which the client's heartbeats are not read
+     */
+    long getLastActivity() {
+        return reading ? lastActivity : System.nanoTime();
+    }
+
+    /**
+     * Closes a connection that missed its heartbeats. Only the socket is closed here, which
+     * makes the handler thread's blocked read fail, and that thread then closes the session.
+     *
+     * @return true if the connection was closed, false if it was already closing
+     */
+    boolean reap() {
+        if (!running) {
+            return false;
         }
+        running = false;
+        String address = socket.getRemoteSocketAddress().toString();
+        System.out.println("Closing idle connection from " + address);
+        ConnectionEvent.emit("reaped", address, ACTIVE_CONNECTIONS.get());
         try {
             socket.close();
         } catch (IOException e) {
-            System.err.println("Error closing socket: " + e.getMessage());
+            System.err.println("Error closing idle connection: " + e.getMessage());
         }
+        return true;
+    }
+
+    /**
+     * Takes a permit for the given command from the rate limiter of the caller.
+     * Logged in users are limited by username. A LOGIN is limited by the username it tries, so
+     * guessing a password is slow while users behind a shared address, such as a load balancer,
+     * do not share one bucket. Other anonymous commands are limited per connection.
+     *
+     * @param action   the command to take a permit for
+     * @param received the whole request line
+     * @return true if the command may run, false if the caller is over its limit
+     */
+    private boolean acquirePermit(String action, String received) {
+        RateLimiter limiter = RATE_LIMITERS.get(action);
+        if (limiter == null) {
+            return true;
+        }
+        String key;
+        if (currentUser != null) {
+            key = currentUser.getUsername();
+        } else if (action.equals("LOGIN")) {
+            StringTokenizer st = new StringTokenizer(received, ":");
+            st.nextToken();
+            key = "login " + (st.hasMoreTokens() ? st.nextToken() : "");
+        } else {
+            key = "connection " + socket.getRemoteSocketAddress();
+        }
+        return limiter.tryAcquire(key);
     }
 
     /**
      * Checks the validity of the user every 5 seconds to ensure the user is still
-     * active or has not been removed.
+     * active or has not been removed. Only a user known to be removed is kicked: while the
+     * database is down the check fails and sessions stay open, so sends can still be spooled.
      */
     @SuppressWarnings("BusyWait")
     private void checkUserValidity() {
         while (running) {
             try {
                 if (currentUser != null && dbHandler.isUserRemoved(currentUser.getUsername())) {
-                    output.println("\nYou have been removed by an admin. Client will now close.");
-                    currentUser = null;
-                    running = false;
-                    // exit the process
-                    closeClient();
+                    kick();
                     break;
                 }
                 Thread.sleep(5000); // check activity every 5 secs
             } catch (InterruptedException e) {
-                System.err.println("Error checking user validity: " + e.getMessage());
+                if (running) {
+                    System.err.println("Error checking user validity: " + e.getMessage());
+                }
             }
         }
     }
 
+    /**
+     * Tells the client that its user has been removed and closes the connection.
+     * Called by the validity check and by the cluster when an admin removes the user.
+     */
+    public void kick() {
+        User user = currentUser;
+        // called from the validity check and cluster threads, a line must not land in the middle of a response
+        synchronized (output) {
+            output.println("\nYou have been removed by an admin. Client will now close.");
+            output.flush();
+        }
+        currentUser = null;
+        running = false;
+        if (user != null) {
+            cluster.sessionClosed(user.getUsername(), this);
+        }
+        // exit the process
+        closeClient();
+    }
+
+    /**
+     * Sends an unsolicited line, such as a notification, to the client.
+     *
+     * @param line the line to send
+     */
+    public void deliver(String line) {
+        respond("\n" + line);
+    }
+
+    /**
+     * Writes a response line of the command being handled, sent when the command loop flushes.
+     * Other threads write to the same connection, e.g. replies completed on a database thread, a
+     * kick or an attachment download, so the line is written under the output lock as well.
+     *
+     * @param line the line to send
+     */
+    private void reply(String line) {
+        synchronized (output) {
+            output.println(line);
+        }
+    }
+
+    /**
+     * Sends the buffered response of the command to the client in one write.
+     */
+    private void flush() {
+        synchronized (output) {
+            output.flush();
+        }
+    }
+
+    /**
+     * Writes a response line and flushes it right away. Used for responses that are
+     * completed on another thread, after the command loop has already flushed.
+     *
+     * @param line the line to send
+     */
+    private void respond(String line) {
+        // an attachment download holds the lock, a line must not land in the middle of its bytes
+        synchronized (output) {
+            output.println(line);
+            output.flush();
+        }
+    }
+
+    /**
+     * Sends a message list response, deflated and base64 encoded behind Z::: if the client
+     * negotiated compression and the line is long enough to gain from it.
+     *
+     * @param line the response line
+     */
+    private void respondMessages(String line) {
+        byte[] compressed = compressTransfers ? TRANSFER_COMPRESSION.compress(line) : null;
+        respond(compressed != null ? "Z:::" + Base64.getEncoder().encodeToString(compressed) : line);
+    }
+
+    /**
+     * Handles the compression request from the client. COMPRESS:::deflate makes the server send
+     * inbox, outbox and conversation responses deflated; any other method turns compression off.
+     * The response is COMPRESSION:::method with the method in use.
+     *
+     * @param st the string tokenizer containing the method
+     */
+    private void handleCompress(StringTokenizer st) {
+        compressTransfers = st.hasMoreTokens() && st.nextToken().equalsIgnoreCase("deflate");
+        reply("COMPRESSION:::" + (compressTransfers ? "deflate" : "none"));
+    }
+
     /**
      * Closes the client by closing the socket, input and output streams.
      */
@@ -137,6 +466,25 @@ public class ClientHandler extends Thread {
         }
     }
 
+    /**
+     * Logs the session out because an admin changed or removed the user, whose resume tokens are
+     * revoked as well. The client has to log in again with the new password.
+     * Called by the cluster when the credentials of the user are revoked on any node.
+     */
+    public void credentialsRevoked() {
+        User user = currentUser;
+        if (user == null) {
+            return;
+        }
+        currentUser = null;
+        cluster.sessionClosed(user.getUsername(), this);
+        // called from the cluster and database threads, a line must not land in the middle of a response
+        synchronized (output) {
+            output.println("\nYour account was changed by an admin. Logout successful, please log in again.");
+            output.flush();
+        }
+    }
+
     /**
      * Handles the login request from the client. The user is authenticated using
      * the provided username and password. If the user is successfully
@@ -151,19 +499,64 @@ public class ClientHandler extends Thread {
             String password = st.hasMoreTokens() ? st.nextToken() : "";
 
             if (username.isEmpty() || password.isEmpty()) {
-                output.println("\nUsername or password cannot be empty.");
+                reply("\nUsername or password cannot be empty.");
                 return;
             }
 
-            currentUser = dbHandler.authenticateUser(username, password);
+            // runs on the interactive bulkhead, so a login is not queued behind heavy reads
+            try {
+                currentUser = asyncDbHandler.authenticateUser(username, password).join();
+            } catch (CompletionException e) {
+                reply(asyncError(e));
+                return;
+            }
             if (currentUser != null) {
-                output.println("\nLogin successful. Admin: " + currentUser.isAdmin());
+                sessionStart = System.currentTimeMillis() / 1000;
+                cluster.sessionOpened(username, this);
+                reply("\nLogin successful. Admin: " + currentUser.isAdmin());
+                reply("RESUMETOKEN:::" + resumeTokens.issue(currentUser, sessionStart));
             } else {
-                output.println("\nLogin failed");
+                reply("\nLogin failed");
             }
         } else {
-            output.println("\nAlready logged in");
+            reply("\nAlready logged in");
+        }
+    }
+
+    /**
+     * Handles the resume request from the client. The session is restored from a token issued
+     * at an earlier login. Forged, expired and revoked tokens are refused without a database
+     * query; for a valid token the user is read from the database, which must still have the
+     * password and admin flag the token was issued for, and whose admin flag is used. A fresh
+     * token is issued so that active clients do not have to send their password again until the
+     * session reaches its maximum lifetime.
+     *
+     * @param st the string tokenizer containing the resume token
+     */
+    private void handleResume(StringTokenizer st) {
+        if (currentUser != null) {
+            reply("\nAlready logged in");
+            return;
+        }
+        ResumeTokens.Session session = st.hasMoreTokens() ? resumeTokens.verify(st.nextToken()) : null;
+        User user = null;
+        if (session != null) {
+            try {
+                user = asyncDbHandler.getActiveUser(session.getUsername()).join();
+            } catch (CompletionException e) {
+                reply(asyncError(e));
+                return;
+            }
+        }
+        if (session == null || !resumeTokens.matches(session, user)) {
+            reply("\nResume failed. Please log in with your password.");
+            return;
         }
+        currentUser = user;
+        sessionStart = session.getStart();
+        cluster.sessionOpened(user.getUsername(), this);
+        reply("\nLogin successful (session resumed). Admin: " + user.isAdmin());
+        reply("RESUMETOKEN:::" + resumeTokens.issue(user, sessionStart));
     }
 
     /**
@@ -172,43 +565,109 @@ public class ClientHandler extends Thread {
      */
     private void handleLogout() {
         if (currentUser == null) {
-            output.println("\nNo user is logged in.");
+            reply("\nNo user is logged in.");
             return;
         }
+        cluster.sessionClosed(currentUser.getUsername(), this);
         currentUser = null;
-        output.println("\nLogout successful");
+        reply("\nLogout successful");
     }
 
     /**
      * Handles the send message request from the client. The message is sent from
      * the current user to the specified receiver. The message is saved in the
-     * database.
+     * database. The request may start with an id=... token carrying a client
+     * generated message id; a retry with the same id is answered without storing
+     * the message again. A ttl=... token gives the number of seconds after which
+     * the message is deleted from both inbox and outbox. An att=... token references an
+     * attachment uploaded with ATTACH by its hash.
      *
-     * @param st the string tokenizer containing the receiver, title, and message
+     * @param st the string tokenizer containing the optional id, ttl and att, receiver, title, and message
      */
     private void handleSendMsg(StringTokenizer st) {
         if (currentUser == null) {
-            output.println("\nNo user is logged in.");
+            reply("\nNo user is logged in.");
             return;
         }
         String sender = currentUser.getUsername();
-        String receiver = st.nextToken();
-        LocalDateTime timestamp = LocalDateTime.now();
-        if (!dbHandler.userExists(receiver)) {
-            output.println("\nUser " + receiver + " does not exist");
+        String receiver;
+        String clientMessageId = null;
+        long ttlSeconds = 0;
+        String attachment = null;
+        String title;
+        String messageContent;
+        try {
+            receiver = st.nextToken();
+            if (receiver.startsWith("id=")) {
+                clientMessageId = receiver.substring(3);
+                receiver = st.nextToken();
+            }
+            if (receiver.startsWith("ttl=")) {
+                try {
+                    ttlSeconds = Long.parseLong(receiver.substring(4));
+                } catch (NumberFormatException e) {
+                    ttlSeconds = -1;
+                }
+                if (ttlSeconds <= 0 || ttlSeconds > MAX_MESSAGE_TTL_SECONDS) {
+                    reply("\nInvalid time to live. Use a number of seconds up to " + MAX_MESSAGE_TTL_SECONDS + ".");
+                    return;
+                }
+                receiver = st.nextToken();
+            }
+            if (receiver.startsWith("att=")) {
+                attachment = receiver.substring(4).toLowerCase();
+                if (!blobStore.contains(attachment)) {
+                    reply("\nUnknown attachment. Upload it with ATTACH first.");
+                    return;
+                }
+                receiver = st.nextToken();
+            }
+            title = st.nextToken();
+            messageContent = st.nextToken();
+        } catch (NoSuchElementException e) {
+            reply("\nReceiver, title and message cannot be empty.");
+            return;
+        }
+        String windowKey = sender + ":" + clientMessageId;
+        LocalDateTime original = clientMessageId != null ? SENT_MESSAGE_IDS.get(windowKey) : null;
+        if (original != null) {
+            reply("\nMessage sent successfully at " + original.format(TIMESTAMP_FORMATTER));
             return;
         }
-        String title = st.nextToken();
-        String messageContent = st.nextToken();
-        Message message = new Message(sender, receiver, title, messageContent, timestamp);
-        dbHandler.saveMessage(message);
-        output.println("\nMessage sent successfully at " + timestamp.format(TIMESTAMP_FORMATTER));
+        LocalDateTime timestamp = LocalDateTime.now();
+        Message message = new Message(0, sender, receiver, title, messageContent, timestamp,
+                ttlSeconds > 0 ? timestamp.plusSeconds(ttlSeconds) : null, attachment);
+        String to = receiver;
+        String id = clientMessageId;
+        // receiver check and insert run in order on the conversation's write stripe, this thread goes back to reading
+        asyncDbHandler.sendMessage(message, id)
+                .whenComplete((result, error) -> {
+                    if (error != null) {
+                        respond(asyncError(error));
+                    } else if (result == AsyncDatabaseHandler.SendResult.UNKNOWN_RECEIVER) {
+                        respond("\nUser " + to + " does not exist");
+                    } else if (result == AsyncDatabaseHandler.SendResult.DUPLICATE) {
+                        respond("\nMessage sent successfully (duplicate request ignored)");
+                    } else if (result == AsyncDatabaseHandler.SendResult.SPOOLED) {
+                        if (id != null) {
+                            SENT_MESSAGE_IDS.put(windowKey, timestamp);
+                        }
+                        respond("\nMessage accepted at " + timestamp.format(TIMESTAMP_FORMATTER)
+                                + ", it will be delivered when the database is available again");
+                    } else {
+                        if (id != null) {
+                            SENT_MESSAGE_IDS.put(windowKey, timestamp);
+                        }
+                        respond("\nMessage sent successfully at " + timestamp.format(TIMESTAMP_FORMATTER));
+                        cluster.notifyUser(to, "New message from " + sender + ": " + title);
+                    }
+                });
     }
 
     /**
      * Handles the add user request from the client. The user is added to the
-     * database with the provided details. The user must be an admin to perform this
-     * operation.
+     * database with the provided details, on the admin bulkhead. The user must be an
+     * admin to perform this operation.
      *
      * @param st the string tokenizer containing the user details
      */
@@ -216,6 +675,10 @@ public class ClientHandler extends Thread {
         if (!isAdmin()) {
             return;
         }
+        if (st.countTokens() < USER_FIELDS) {
+            reply("\nAll user details are required: username, name, surname, birthdate, gender, email, location, password and admin flag.");
+            return;
+        }
         String username = st.nextToken();
         String name = st.nextToken();
         String surname = st.nextToken();
@@ -226,45 +689,204 @@ public class ClientHandler extends Thread {
         String password = st.nextToken();
         boolean isAdmin = Boolean.parseBoolean(st.nextToken());
 
-        // enforce unique usernames
-        if (dbHandler.getUserByUsername(username) != null) {
-            output.println("\nUsername already taken.");
-            return;
-        }
-
         // enforce valid date (YYYY-MM-DD format and 0<month<=12, 0<day<=31)
         LocalDate parsedBirthdate;
         if (!isValidDate(birthdate)) {
-            output.println("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
+            reply("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
             return;
         } else {
             try {
                 parsedBirthdate = LocalDate.parse(birthdate, DATE_FORMATTER);
             } catch (DateTimeParseException e) {
-                output.println("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
+                reply("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
                 return;
             }
         }
 
         // enforce binary genders
         if (!Objects.equals(gender, "M") && !Objects.equals(gender, "F")) {
-            output.println("\nInvalid gender. Make sure to enter either M or F.");
+            reply("\nInvalid gender. Make sure to enter either M or F.");
+            return;
+        }
+
+        User admin = currentUser;
+        User user = new User(username, name, surname, java.sql.Date.valueOf(parsedBirthdate), gender, email,
+                location, password, isAdmin);
+        // enforce unique usernames, removed users keep theirs
+        asyncDbHandler.getUserByUsername(username).thenCompose(existing -> existing != null
+                ? CompletableFuture.completedFuture(false)
+                : asyncDbHandler.addUser(admin, user).thenApply(done -> true)
+        ).whenComplete((added, error) -> {
+            if (error != null) {
+                respond(asyncError(error, "Error adding user"));
+            } else {
+                respond(added ? "\nUser added successfully" : "\nUsername already taken.");
+            }
+        });
+    }
+
+    /**
+     * Handles the bulk import request from the client. The client streams one CSV row per line
+     * (username,name,surname,birthdate,gender,email,location,password,isAdmin) and ends with ENDIMPORT.
+     * Rows are validated with the same rules as ADDUSER while they arrive, and valid rows are handed
+     * in chunks to a loader thread that COPYs them into the database on the admin bulkhead, so
+     * reading and loading overlap.
+     * The user must be an admin to perform this operation.
+     *
+     * @throws IOException if reading the rows fails
+     */
+    private void handleImportUsers() throws IOException {
+        boolean permitted = isAdmin();
+        long start = System.nanoTime();
+        Map<Integer, String> errors = new ConcurrentSkipListMap<>();
+        Map<String, Integer> rowNumbers = new ConcurrentHashMap<>();
+        BlockingQueue<List<User>> chunks = new ArrayBlockingQueue<>(4);
+        AtomicLong imported = new AtomicLong();
+        Thread loader = new Thread(() -> loadImportChunks(chunks, rowNumbers, errors, imported));
+        if (permitted) {
+            loader.start();
+        }
+
+        List<User> chunk = new ArrayList<>();
+        int row = 0;
+        String line;
+        while ((line = readLine(MAX_IMPORT_LINE_LENGTH)) != null && !line.equals("ENDIMPORT")) {
+            row++;
+            if (!permitted || (row == 1 && line.startsWith("username,"))) {
+                continue; // drain the payload, skip the header
+            }
+            if (line.length() > MAX_IMPORT_LINE_LENGTH) {
+                errors.put(row, "Row is longer than " + MAX_IMPORT_LINE_LENGTH + " characters.");
+                continue;
+            }
+            String[] fields = line.split(",", -1);
+            String error = validateImportRow(fields, rowNumbers);
+            if (error != null) {
+                errors.put(row, error);
+                continue;
+            }
+            rowNumbers.put(fields[0], row);
+            chunk.add(new User(fields[0], fields[1], fields[2], java.sql.Date.valueOf(LocalDate.parse(fields[3], DATE_FORMATTER)),
+                    fields[4], fields[5], fields[6], fields[7], Boolean.parseBoolean(fields[8])));
+            if (chunk.size() == IMPORT_CHUNK_SIZE) {
+                putChunk(chunks, chunk);
+                chunk = new ArrayList<>();
+            }
+        }
+        if (!permitted) {
             return;
         }
+        if (!chunk.isEmpty()) {
+            putChunk(chunks, chunk);
+        }
+        putChunk(chunks, List.of()); // end of import
+        try {
+            loader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        reply("\nImport finished: " + imported.get() + " users imported, " + errors.size() + " rows rejected in "
+                + millis + " ms (" + imported.get() * 1000 / millis + " users/s)");
+        errors.entrySet().stream().limit(IMPORT_MAX_REPORTED_ERRORS)
+                .forEach(error -> reply("Row " + error.getKey() + ": " + error.getValue()));
+        if (errors.size() > IMPORT_MAX_REPORTED_ERRORS) {
+            reply("... " + (errors.size() - IMPORT_MAX_REPORTED_ERRORS) + " more rejected rows");
+        }
+    }
+
+    /**
+     * Validates one CSV row of an import with the rules of ADDUSER, and checks what ADDUSER gets
+     * for free from the protocol or the database: no ':' in the username, which separates the
+     * fields of the protocol, and no field longer than its column. A too long field would
+     * otherwise fail the COPY of its whole chunk instead of just its row.
+     *
+     * @param fields     the fields of the row
+     * @param rowNumbers the usernames seen earlier in the same import
+     * @return the error message, or null if the row is valid
+     */
+    private String validateImportRow(String[] fields, Map<String, Integer> rowNumbers) {
+        if (fields.length != 9) {
+            return "Expected 9 fields but found " + fields.length + ".";
+        }
+        if (fields[0].isEmpty()) {
+            return "Username cannot be empty.";
+        }
+        if (fields[0].contains(":")) {
+            return "Username cannot contain ':'.";
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (IMPORT_FIELD_LENGTHS[i] > 0 && fields[i].length() > IMPORT_FIELD_LENGTHS[i]) {
+                return "Field " + IMPORT_FIELD_NAMES[i] + " is longer than " + IMPORT_FIELD_LENGTHS[i] + " characters.";
+            }
+        }
+        if (rowNumbers.containsKey(fields[0])) {
+            return "Username duplicates row " + rowNumbers.get(fields[0]) + ".";
+        }
+        if (!isValidDate(fields[3])) {
+            return "Invalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.";
+        }
+        if (!Objects.equals(fields[4], "M") && !Objects.equals(fields[4], "F")) {
+            return "Invalid gender. Make sure to enter either M or F.";
+        }
+        return null;
+    }
+
+    /**
+     * Hands a chunk of validated users to the loader thread, waiting if it is behind.
+     */
+    private void putChunk(BlockingQueue<List<User>> chunks, List<User> chunk) {
         try {
-            User user = new User(username, name, surname, java.sql.Date.valueOf(parsedBirthdate), gender, email,
-                    location, password, isAdmin);
-            dbHandler.addUser(currentUser, user);
-            output.println("\nUser added successfully");
-        } catch (Exception e) {
-            output.println("\nError adding user: " + e.getMessage());
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loader side of an import. Takes chunks until an empty one arrives, rejects usernames that are
+     * already taken and COPYs the rest.
+     *
+     * @param chunks     the queue of validated chunks
+     * @param rowNumbers the CSV row of every queued username
+     * @param errors     the per row errors of the import
+     * @param imported   the number of users loaded so far
+     */
+    private void loadImportChunks(BlockingQueue<List<User>> chunks, Map<String, Integer> rowNumbers,
+                                  Map<Integer, String> errors, AtomicLong imported) {
+        try {
+            List<User> chunk;
+            while (!(chunk = chunks.take()).isEmpty()) {
+                try {
+                    Set<String> existing = asyncDbHandler.findExistingUsernames(chunk.stream().map(User::getUsername).toList()).join();
+                    List<User> fresh = new ArrayList<>();
+                    for (User user : chunk) {
+                        if (existing.contains(user.getUsername())) {
+                            errors.put(rowNumbers.get(user.getUsername()), "Username already taken.");
+                        } else {
+                            fresh.add(user);
+                        }
+                    }
+                    if (!fresh.isEmpty()) {
+                        imported.addAndGet(asyncDbHandler.copyUsers(currentUser, fresh).join());
+                    }
+                } catch (CompletionException e) {
+                    String reason = e.getCause() instanceof RejectedExecutionException
+                            ? "too many pending requests" : e.getCause().getMessage();
+                    for (User user : chunk) {
+                        errors.putIfAbsent(rowNumbers.get(user.getUsername()), "Chunk failed: " + reason);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
      * Handles the remove user request from the client. The user is removed from the
-     * database. The user must be an admin to perform this operation.
+     * database, on the admin bulkhead. The user must be an admin to perform this operation.
      *
      * @param st the string tokenizer containing the username
      */
@@ -272,22 +894,55 @@ public class ClientHandler extends Thread {
         if (!isAdmin()) {
             return;
         }
+        if (!st.hasMoreTokens()) {
+            reply("\nUsername cannot be empty.");
+            return;
+        }
         String username = st.nextToken();
-        if (dbHandler.getUserByUsername(username) == null) {
-            output.println("\nUser not found.");
+        User admin = currentUser;
+        asyncDbHandler.userExists(username).thenCompose(exists -> exists
+                ? asyncDbHandler.removeUser(admin, username).thenApply(done -> true)
+                : CompletableFuture.completedFuture(false)
+        ).whenComplete((removed, error) -> {
+            if (error != null) {
+                respond(asyncError(error, "Error removing user"));
+            } else if (!removed) {
+                respond("\nUser not found.");
+            } else {
+                cluster.kick(username);
+                cluster.revokeCredentials(username);
+                respond("\nUser removed successfully. Their messages are detached in the background, see REMOVALS.");
+            }
+        });
+    }
+
+    /**
+     * Handles the removals request from the client. The progress of the background
+     * removals is displayed to the client. The user must be an admin to perform this
+     * operation.
+     */
+    private void handleRemovals() {
+        if (!isAdmin()) {
             return;
         }
         try {
-            dbHandler.removeUser(currentUser, username);
-            output.println("\nUser removed successfully");
+            Map<String, UserRemovalWorker.Progress> removals = dbHandler.getRemovalProgress(currentUser);
+            if (removals.isEmpty()) {
+                reply("\nNo removals since the server started.");
+                return;
+            }
+            reply("\nRemovals:");
+            removals.forEach((username, progress) ->
+                    reply(username + ": " + progress.getStatus() + ", " + progress.getDetached() + " messages detached"));
         } catch (Exception e) {
-            output.println("\nError removing user: " + e.getMessage());
+            reply("\nError listing removals: " + e.getMessage());
         }
     }
 
     /**
      * Handles the update user request from the client. The user details are updated
-     * in the database. The user must be an admin to perform this operation.
+     * in the database, on the admin bulkhead. The user must be an admin to perform this
+     * operation.
      *
      * @param st the string tokenizer containing the user details
      */
@@ -296,6 +951,10 @@ public class ClientHandler extends Thread {
         if (!isAdmin()) {
             return;
         }
+        if (st.countTokens() < USER_FIELDS) {
+            reply("\nAll user details are required: username, name, surname, birthdate, gender, email, location, password and admin flag.");
+            return;
+        }
         String username = st.nextToken();
         String name = st.nextToken();
         String surname = st.nextToken();
@@ -306,93 +965,589 @@ public class ClientHandler extends Thread {
         String password = st.nextToken();
         boolean isAdmin = Boolean.parseBoolean(st.nextToken());
 
-        if (!dbHandler.userExists(username)) {
-            output.println("\nUser not found.");
-            return;
-        }
         LocalDate parsedBirthdate;
         if (!isValidDate(birthdate)) {
-            output.println("\n\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
+            reply("\n\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
             return;
         } else {
             try {
                 parsedBirthdate = LocalDate.parse(birthdate, DATE_FORMATTER);
             } catch (DateTimeParseException e) {
-                output.println("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
+                reply("\nInvalid birthdate. Please use YYYY-MM-DD, and make sure values are correct.");
                 return;
             }
         }
 
         // enforce binary genders
         if (!Objects.equals(gender, "M") && !Objects.equals(gender, "F")) {
-            output.println("\nInvalid gender. Make sure to enter either M or F.");
+            reply("\nInvalid gender. Make sure to enter either M or F.");
             return;
         }
 
-        try {
-            User user = new User(username, name, surname, java.sql.Date.valueOf(parsedBirthdate), gender, email,
-                    location, password, isAdmin);
-            dbHandler.updateUser(currentUser, user);
-            output.println("\nUser updated successfully");
-        } catch (Exception e) {
-            output.println("\nError updating user: " + e.getMessage());
-        }
+        User admin = currentUser;
+        User user = new User(username, name, surname, java.sql.Date.valueOf(parsedBirthdate), gender, email,
+                location, password, isAdmin);
+        asyncDbHandler.userExists(username).thenCompose(exists -> exists
+                ? asyncDbHandler.updateUser(admin, user).thenApply(done -> true)
+                : CompletableFuture.completedFuture(false)
+        ).whenComplete((updated, error) -> {
+            if (error != null) {
+                respond(asyncError(error, "Error updating user"));
+            } else if (!updated) {
+                respond("\nUser not found.");
+            } else {
+                cluster.revokeCredentials(username);
+                respond("\nUser updated successfully");
+            }
+        });
     }
 
     /**
-     * Handles the list users request from the client. The list of users is
-     * retrieved
-     * from the database and displayed to the client. The user must be an admin to
-     * perform this operation.
+     * Handles the list users request from the client. One page of users is read
+     * from the database into a buffer and then sent to the client: a LISTUSERS::: header,
+     * one USER::: line per user and an ENDLISTUSERS::: line carrying the username to
+     * continue after, if there are more users. Optional key:::value pairs select the
+     * page (after, limit) and a prefix filter (username or location). The user must
+     * be an admin to perform this operation.
+     *
+     * @param st the string tokenizer containing the optional paging and filter pairs
      */
-    private void handleListUsers() {
+    private void handleListUsers(StringTokenizer st) {
         if (!isAdmin()) {
             return;
         }
+        String after = null;
+        String column = null;
+        String prefix = null;
+        int limit = LIST_USERS_PAGE_SIZE;
         try {
-            List<User> users = dbHandler.listUsers(currentUser);
-            StringBuilder sb = new StringBuilder();
-            sb.append("LISTUSERS:::");
-            for (User user : users) {
-                sb.append(String.join(":::", user.getUsername(), user.getName(), user.getSurname(), user.getGender(), user.getEmail(), user.getLocation(), String.valueOf(user.isAdmin())));
-                sb.append(":::");
+            while (st.hasMoreTokens()) {
+                String key = st.nextToken().toLowerCase();
+                String value = st.nextToken();
+                switch (key) {
+                    case "after" -> after = value;
+                    case "limit" -> limit = Math.min(Math.max(1, Integer.parseInt(value)), LIST_USERS_MAX_PAGE_SIZE);
+                    case "username", "location" -> {
+                        column = key;
+                        prefix = value;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown option " + key);
+                }
             }
-            output.println(sb);
-        } catch (Exception e) {
-            output.println("\nError listing users: " + e.getMessage());
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            reply("\nInvalid LISTUSERS options. Use after, limit, username or location followed by a value.");
+            return;
+        }
+        reply("LISTUSERS:::");
+        try {
+            // runs on the admin bulkhead, which only buffers the page: the rows are written here, so a
+            // client that reads slowly holds up its own handler thread, not the database cursor
+            List<String> rows = new ArrayList<>(limit);
+            String next = asyncDbHandler.listUsers(currentUser, after, column, prefix, limit, user ->
+                    rows.add(String.join(":::", "USER", user.getUsername(), user.getName(), user.getSurname(),
+                            user.getGender(), user.getEmail(), user.getLocation(), String.valueOf(user.isAdmin()))))
+                    .join();
+            rows.forEach(this::reply);
+            reply("ENDLISTUSERS:::" + (next != null ? next : ""));
+        } catch (CompletionException e) {
+            reply("ENDLISTUSERS:::");
+            reply(e.getCause() instanceof RejectedExecutionException
+                    ? asyncError(e) : "\nError listing users: " + e.getCause().getMessage());
         }
     }
 
     /**
      * Handles the get inbox / outbox request from the client. The inbox / outbox messages are
      * retrieved
-     * from the database and displayed to the client.
+     * from the database and displayed to the client. GETINBOX:::recent only returns the latest
+     * messages, which are served from the recent inbox cache. GETINBOX:::since:::id and
+     * GETOUTBOX:::since:::cursor return only the messages after the cursor of the previous sync,
+     * with their ids, for clients that keep a local copy (SYNCINBOX / SYNCOUTBOX responses, which
+     * carry the cursor for the next sync).
      *
+     * @param st      the string tokenizer containing the optional recent / since option
      * @param isInbox bool var to decide inbox / outbox
      */
-    private void handleGetMessages(boolean isInbox) {
+    private void handleGetMessages(StringTokenizer st, boolean isInbox) {
         if (currentUser == null) {
-            output.println("\nPermission denied. User not authenticated.");
+            reply("\nPermission denied. User not authenticated.");
             return;
         }
-        try {
-            List<Message> messages = dbHandler.getMessages(currentUser.getUsername(), isInbox);
-            StringBuilder sb = new StringBuilder();
-            sb.append(isInbox ? "GETINBOX:::" : "GETOUTBOX:::");
-            for (Message message : messages) {
-                sb.append(String.join(":::",
-                        isInbox ? message.getSender() : message.getReceiver(),
-                        message.getTitle(),
-                        message.getContent(),
-                        message.getTimestamp().format(TIMESTAMP_FORMATTER)));
-                sb.append(":::");
+        String option = st.hasMoreTokens() ? st.nextToken().toLowerCase() : "";
+        String username = currentUser.getUsername();
+        if (option.equals("since")) {
+            long afterId;
+            try {
+                afterId = Long.parseLong(st.nextToken());
+            } catch (NoSuchElementException | NumberFormatException e) {
+                reply("\nInvalid sync cursor.");
+                return;
+            }
+            asyncDbHandler.getMessagesSince(username, isInbox, afterId).whenComplete((result, error) -> {
+                if (error != null) {
+                    respond(asyncError(error));
+                } else {
+                    respondMessages(formatMessagesWithIds(result.getMessages(), result.getCursor(), isInbox));
+                }
+            });
+            return;
+        }
+        CompletableFuture<List<Message>> messages = isInbox && option.equals("recent")
+                ? asyncDbHandler.getRecentInbox(username)
+                : asyncDbHandler.getMessages(username, isInbox);
+        messages.whenComplete((result, error) -> {
+            if (error != null) {
+                respond(asyncError(error));
+            } else {
+                respondMessages(formatMessages(result, isInbox));
+            }
+        });
+    }
+
+    /**
+     * Handles the conversation request from the client: the messages between the current user
+     * and another user, both directions in timestamp order, a page at a time. The first page
+     * holds the latest messages, GETCONVERSATION:::user:::before:::cursor returns the page before
+     * it. The response is CONVERSATION:::user:::cursor (or "end" if there is no older page),
+     * then sender, title, content and timestamp per message.
+     *
+     * @param st the string tokenizer containing the other username and the optional cursor
+     */
+    private void handleGetConversation(StringTokenizer st) {
+        if (currentUser == null) {
+            reply("\nPermission denied. User not authenticated.");
+            return;
+        }
+        if (!st.hasMoreTokens()) {
+            reply("\nUsername cannot be empty.");
+            return;
+        }
+        String other = st.nextToken();
+        LocalDateTime beforeTimestamp = null;
+        long beforeId = 0;
+        if (st.hasMoreTokens() && st.nextToken().equalsIgnoreCase("before")) {
+            try {
+                String[] cursor = st.nextToken().split("\\.");
+                long micros = Long.parseLong(cursor[0]);
+                beforeTimestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                        (int) Math.floorMod(micros, 1_000_000L) * 1000, ZoneOffset.UTC);
+                beforeId = Long.parseLong(cursor[1]);
+            } catch (NoSuchElementException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                reply("\nInvalid conversation cursor.");
+                return;
+            }
+        }
+        asyncDbHandler.getConversation(currentUser.getUsername(), other, beforeTimestamp, beforeId, CONVERSATION_PAGE_SIZE)
+                .whenComplete((messages, error) -> {
+                    if (error != null) {
+                        respond(asyncError(error));
+                        return;
+                    }
+                    StringBuilder sb = new StringBuilder("CONVERSATION:::").append(other).append(":::");
+                    if (messages.size() < CONVERSATION_PAGE_SIZE) {
+                        sb.append("end");
+                    } else {
+                        // the timestamp is encoded as a number, the protocol splits fields at ':'
+                        Message oldest = messages.get(0);
+                        LocalDateTime timestamp = oldest.getTimestamp();
+                        long micros = timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + timestamp.getNano() / 1000;
+                        sb.append(micros).append('.').append(oldest.getId());
+                    }
+                    sb.append(":::");
+                    for (Message message : messages) {
+                        sb.append(String.join(":::", message.getSender(), message.getTitle(), displayContent(message),
+                                message.getTimestamp().format(TIMESTAMP_FORMATTER)));
+                        sb.append(":::");
+                    }
+                    respondMessages(sb.toString());
+                });
+    }
+
+    /**
+     * Formats an inbox / outbox as a single protocol line.
+     *
+     * @param messages the messages to format
+     * @param isInbox  bool var to decide inbox / outbox
+     * @return the response line
+     */
+    private String formatMessages(List<Message> messages, boolean isInbox) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(isInbox ? "GETINBOX:::" : "GETOUTBOX:::");
+        for (Message message : messages) {
+            sb.append(String.join(":::",
+                    isInbox ? message.getSender() : message.getReceiver(),
+                    message.getTitle(),
+                    displayContent(message),
+                    message.getTimestamp().format(TIMESTAMP_FORMATTER)));
+            sb.append(":::");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Formats new inbox / outbox messages with their ids and expiry times as a single protocol
+     * line, after the cursor the client asks for the next sync with.
+     *
+     * @param messages the messages to format
+     * @param cursor   the cursor of the next sync
+     * @param isInbox  bool var to decide inbox / outbox
+     * @return the response line
+     */
+    private String formatMessagesWithIds(List<Message> messages, long cursor, boolean isInbox) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(isInbox ? "SYNCINBOX:::" : "SYNCOUTBOX:::").append(cursor).append(":::");
+        for (Message message : messages) {
+            sb.append(String.join(":::",
+                    String.valueOf(message.getId()),
+                    isInbox ? message.getSender() : message.getReceiver(),
+                    message.getTitle(),
+                    displayContent(message),
+                    message.getTimestamp().format(TIMESTAMP_FORMATTER),
+                    message.getExpiresAt() != null ? message.getExpiresAt().format(TIMESTAMP_FORMATTER) : "never"));
+            sb.append(":::");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the content of a message followed by the hash of its attachment, if it has one,
+     * which the client downloads the attachment with
+     */
+    private static String displayContent(Message message) {
+        return message.getAttachment() != null
+                ? message.getContent() + " [attachment " + message.getAttachment() + "]"
+                : message.getContent();
+    }
+
+    /**
+     * Handles an attachment upload. ATTACH:::size is followed by the content as base64 lines,
+     * one chunk per line, and ENDATTACH. Every chunk is decoded and written to the blob store
+     * as it arrives, so the attachment is never held in memory as a whole. Lines longer than a
+     * chunk are refused without being held in memory either, and the upload is aborted at the
+     * first chunk that takes it past the declared size. Uploads are rate limited per user, and a
+     * refused upload is drained like an invalid one. The response carries the SHA-256 hash
+     * that SENDMSG references the attachment with (att=hash).
+     *
+     * @param st the string tokenizer containing the size of the attachment in bytes
+     * @throws IOException if reading the chunks fails
+     */
+    private void handleAttach(StringTokenizer st) throws IOException {
+        String error = null;
+        long size = -1;
+        if (currentUser == null) {
+            error = "No user is logged in.";
+        } else {
+            try {
+                size = Long.parseLong(st.nextToken());
+            } catch (NoSuchElementException | NumberFormatException e) {
+                error = "Invalid attachment size.";
+            }
+            if (error == null && (size < 0 || size > MAX_ATTACHMENT_BYTES)) {
+                error = "Attachments can be at most " + MAX_ATTACHMENT_BYTES + " bytes.";
             }
-            output.println(sb);
+            if (error == null && !ATTACH_LIMITER.tryAcquire(currentUser.getUsername())) {
+                error = "Rate limit exceeded for ATTACH. Please slow down.";
+            }
+        }
+        BlobStore.Upload upload = null;
+        if (error == null) {
+            try {
+                upload = blobStore.begin(size);
+            } catch (IOException e) {
+                error = "Error storing attachment: " + e.getMessage();
+            }
+        }
+        String line;
+        while ((line = readLine(MAX_ATTACHMENT_LINE_LENGTH)) != null && !line.equals("ENDATTACH")) {
+            if (upload == null) {
+                continue; // drain the chunks of a refused upload
+            }
+            if (line.length() > MAX_ATTACHMENT_LINE_LENGTH) {
+                error = "Attachment chunks can be at most " + MAX_ATTACHMENT_LINE_LENGTH + " base64 characters.";
+                upload.abort();
+                upload = null;
+                continue;
+            }
+            try {
+                // the upload refuses a chunk that takes it past the declared size
+                upload.write(Base64.getDecoder().decode(line));
+            } catch (IllegalArgumentException | IOException e) {
+                error = "Error storing attachment: " + e.getMessage();
+                upload.abort();
+                upload = null;
+            }
+        }
+        if (upload == null) {
+            reply("\n" + error);
+            return;
+        }
+        if (line == null || upload.getSize() != size) {
+            upload.abort();
+            reply("\nAttachment incomplete: " + upload.getSize() + " of " + size + " bytes received.");
+            return;
+        }
+        try {
+            reply("\nAttachment stored: " + upload.finish());
+        } catch (IOException e) {
+            upload.abort();
+            reply("\nError storing attachment: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles an attachment download. The response is the line ATTACHMENT:::hash:::size followed
+     * by exactly size raw bytes, which are copied from the blob file to the socket by the kernel.
+     * Only the sender and the receiver of a message with the attachment may download it.
+     *
+     * @param st the string tokenizer containing the hash of the attachment
+     * @throws IOException if writing to the client fails
+     */
+    private void handleGetAttachment(StringTokenizer st) throws IOException {
+        if (currentUser == null) {
+            reply("\nPermission denied. User not authenticated.");
+            return;
+        }
+        String hash = st.hasMoreTokens() ? st.nextToken().trim().toLowerCase() : "";
+        boolean readable;
+        try {
+            // checked on the interactive bulkhead, the transfer itself stays on this thread
+            readable = blobStore.contains(hash) && asyncDbHandler.canReadAttachment(currentUser.getUsername(), hash).join();
+        } catch (CompletionException e) {
+            reply(asyncError(e));
+            return;
+        }
+        if (!readable) {
+            reply("\nAttachment not found.");
+            return;
+        }
+        synchronized (output) {
+            output.println("ATTACHMENT:::" + hash + ":::" + blobStore.size(hash));
+            output.flush();
+            WritableByteChannel target = socket.getChannel() != null
+                    ? socket.getChannel()
+                    : Channels.newChannel(socket.getOutputStream());
+            blobStore.transferTo(hash, target);
+        }
+    }
+
+    /**
+     * Turns the failure of an asynchronous database operation into a response line.
+     *
+     * @param error the failure, possibly wrapped in a CompletionException
+     * @return the response line
+     */
+    private String asyncError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            return "\nToo many pending requests. Please try again later.";
+        }
+        return "\nError processing request: " + cause.getMessage();
+    }
+
+    /**
+     * Turns the failure of an asynchronous database operation into a response line naming the
+     * operation, unless the database was too busy to run it.
+     *
+     * @param error   the failure, possibly wrapped in a CompletionException
+     * @param failure what failed, e.g. "Error adding user"
+     * @return the response line
+     */
+    private String asyncError(Throwable error, String failure) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof RejectedExecutionException) {
+            return asyncError(cause);
+        }
+        return "\n" + failure + ": " + cause.getMessage();
+    }
+
+
+    /**
+     * Handles the cache statistics request from the client. The user must be an admin
+     * to perform this operation.
+     */
+    private void handleCacheStats() {
+        if (!isAdmin()) {
+            return;
+        }
+        try {
+            reply("\n" + dbHandler.getInboxCacheStats(currentUser));
+            reply(dbHandler.getCompressionStats(currentUser));
+            reply(TRANSFER_COMPRESSION.getStats());
+            reply(reaper.getStats());
         } catch (Exception e) {
-            output.println("\nError retrieving messages: " + e.getMessage());
+            reply("\nError reading cache statistics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the usage statistics request from the client: messages per day, top senders and
+     * largest mailboxes, for the last 7 days or for STATS:::from:::to. The user must be an admin
+     * to perform this operation.
+     *
+     * @param st the string tokenizer containing the optional first and last day
+     */
+    private void handleStats(StringTokenizer st) {
+        if (!isAdmin()) {
+            return;
+        }
+        LocalDate to = LocalDate.now();
+        LocalDate from = to.minusDays(STATS_DEFAULT_DAYS - 1);
+        if (st.hasMoreTokens()) {
+            String fromDate = st.nextToken();
+            String toDate = st.hasMoreTokens() ? st.nextToken() : to.format(DATE_FORMATTER);
+            if (!isValidDate(fromDate) || !isValidDate(toDate)) {
+                reply("\nInvalid date format. Please use YYYY-MM-DD.");
+                return;
+            }
+            from = LocalDate.parse(fromDate, DATE_FORMATTER);
+            to = LocalDate.parse(toDate, DATE_FORMATTER);
+            if (from.isAfter(to)) {
+                reply("\nThe first day is after the last day.");
+                return;
+            }
+        }
+        asyncDbHandler.getStats(currentUser, from, to, STATS_TOP)
+                .whenComplete((stats, error) -> respond(error != null ? asyncError(error) : "\n" + stats));
+    }
+
+    /**
+     * Handles the join request from the client. The current user becomes a member of the
+     * channel, which is created if it does not exist yet.
+     *
+     * @param st the string tokenizer containing the channel name
+     */
+    private void handleJoin(StringTokenizer st) {
+        if (currentUser == null) {
+            reply("\nPermission denied. User not authenticated.");
+            return;
+        }
+        String channel = st.hasMoreTokens() ? st.nextToken().trim() : "";
+        if (channel.isEmpty() || channel.length() > MAX_CHANNEL_NAME_LENGTH) {
+            reply("\nChannel name must be 1 to " + MAX_CHANNEL_NAME_LENGTH + " characters.");
+            return;
         }
+        asyncDbHandler.joinChannel(channel, currentUser.getUsername()).whenComplete((joined, error) -> {
+            if (error != null) {
+                respond(asyncError(error));
+            } else {
+                respond(joined ? "\nJoined channel " + channel : "\nAlready a member of channel " + channel);
+            }
+        });
     }
 
+    /**
+     * Handles the post request from the client. The post is stored once for the whole channel
+     * and read by every member with GETCHANNEL, whatever the size of the channel.
+     *
+     * @param st the string tokenizer containing the channel name, title and content
+     */
+    private void handlePost(StringTokenizer st) {
+        if (currentUser == null) {
+            reply("\nNo user is logged in.");
+            return;
+        }
+        String channel;
+        String title;
+        String content;
+        try {
+            channel = st.nextToken();
+            title = st.nextToken();
+            content = st.nextToken();
+        } catch (NoSuchElementException e) {
+            reply("\nChannel, title and message cannot be empty.");
+            return;
+        }
+        LocalDateTime timestamp = LocalDateTime.now();
+        Message post = new Message(currentUser.getUsername(), channel, title, content, timestamp);
+        asyncDbHandler.postToChannel(post).whenComplete((stored, error) -> {
+            if (error != null) {
+                respond(asyncError(error));
+            } else if (!stored) {
+                respond("\nYou are not a member of channel " + channel);
+            } else {
+                respond("\nPosted to channel " + channel + " at " + timestamp.format(TIMESTAMP_FORMATTER));
+            }
+        });
+    }
+
+    /**
+     * Handles the get channel request from the client. The posts the user has not read yet are
+     * returned, at most a page at a time, and the user's read cursor of the channel moves past them.
+     * Protocol is GETCHANNEL:::channel followed by sender, title, content and timestamp per post.
+     *
+     * @param st the string tokenizer containing the channel name
+     */
+    private void handleGetChannel(StringTokenizer st) {
+        if (currentUser == null) {
+            reply("\nPermission denied. User not authenticated.");
+            return;
+        }
+        if (!st.hasMoreTokens()) {
+            reply("\nChannel name cannot be empty.");
+            return;
+        }
+        String channel = st.nextToken();
+        asyncDbHandler.readChannel(channel, currentUser.getUsername(), CHANNEL_PAGE_SIZE).whenComplete((posts, error) -> {
+            if (error != null) {
+                respond(asyncError(error));
+                return;
+            }
+            if (posts == null) {
+                respond("\nYou are not a member of channel " + channel);
+                return;
+            }
+            StringBuilder sb = new StringBuilder("GETCHANNEL:::").append(channel).append(":::");
+            for (Message post : posts) {
+                sb.append(String.join(":::", post.getSender(), post.getTitle(), post.getContent(),
+                        post.getTimestamp().format(TIMESTAMP_FORMATTER)));
+                sb.append(":::");
+            }
+            respond(sb.toString());
+            if (posts.size() == CHANNEL_PAGE_SIZE) {
+                respond("\nMore unread posts in channel " + channel + ". Run GETCHANNEL again.");
+            }
+        });
+    }
+
+    /**
+     * Handles the who is online request from the client. Without a username the users online
+     * anywhere in the cluster are listed, with one the presence of that user is returned.
+     * Both are answered from memory; only the last seen time of a user that has not logged in
+     * or out since the server started is read from the database.
+     *
+     * @param st the string tokenizer containing the optional username
+     */
+    private void handleWhoIsOnline(StringTokenizer st) {
+        if (currentUser == null) {
+            reply("\nPermission denied. User not authenticated.");
+            return;
+        }
+        PresenceTracker presence = cluster.getPresence();
+        if (!st.hasMoreTokens()) {
+            List<String> users = presence.getOnlineUsers();
+            reply("\nOnline users (" + users.size() + "): " + String.join(", ", users));
+            return;
+        }
+        String username = st.nextToken();
+        if (!presence.locate(username).isEmpty()) {
+            reply("\n" + username + " is online");
+            return;
+        }
+        LocalDateTime lastSeen = presence.getLastSeen(username);
+        if (lastSeen != null) {
+            reply("\n" + username + " was last seen at " + lastSeen.format(TIMESTAMP_FORMATTER));
+            return;
+        }
+        asyncDbHandler.getLastSeen(username).whenComplete((stored, error) -> {
+            if (error != null) {
+                respond(asyncError(error, "Error reading last seen time"));
+            } else {
+                respond(stored != null
+                        ? "\n" + username + " was last seen at " + stored.format(TIMESTAMP_FORMATTER)
+                        : "\n" + username + " has not been seen yet");
+            }
+        });
+    }
 
     /**
      * Checks if the date string is in the correct format (YYYY-MM-DD).
@@ -416,7 +1571,7 @@ public class ClientHandler extends Thread {
      */
     private boolean isAdmin() {
         if (currentUser == null || !currentUser.isAdmin()) {
-            output.println("\nPermission denied. Only admins can perform this operation.");
+            reply("\nPermission denied. Only admins can perform this operation.");
             return false;
         }
         return true;
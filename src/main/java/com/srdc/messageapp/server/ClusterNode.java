@@ -0,0 +1,580 @@
+package com.srdc.messageapp.server;
+
+/**
+ * This class connects a Server to the other servers of a cluster that share the same database.
+ * It keeps the sessions of this node, feeds a PresenceTracker with the nodes every logged in user
+ * is connected to, and keeps a line based TCP channel to every peer. A user may have sessions on
+ * several nodes, and several on one node; a node announces a user's first session with SESSION
+ * and the end of the last one with ENDSESSION. Peers are taken from a static list given at startup.
+ * Session changes, credential revocations and inbox cache invalidations are broadcast to all
+ * peers, while kicks and notifications are sent only to the nodes that hold a session of the user,
+ * where they reach every session of the user.
+ * The cluster port is bound to one interface only, and a peer must prove that it knows the shared
+ * cluster key before any of its commands are applied: the accepting node sends a random challenge
+ * that the connecting node answers with its HMAC-SHA256.
+ * Every peer has its own sender thread and queue, so a slow or unreachable peer never holds up a
+ * login. Each channel carries a PING every few seconds; a node that hears nothing from a peer for
+ * a while, or whose channel from it closes, treats the peer as gone and forgets its sessions. A
+ * node that (re)connects to a peer sends it all of its sessions first.
+ * Node to node protocol is ":::" separated lines:
+ * CHALLENGE:::nonce, AUTH:::node:::hmac, HELLO:::node, SESSION:::user:::node, ENDSESSION:::user:::node,
+ * KICK:::user, REVOKE:::user, NOTIFY:::user:::text, INVALIDATE:::kind:::user, PING
+ */
+
+import com.srdc.messageapp.database.DatabaseHandler;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+public class ClusterNode {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int AUTH_TIMEOUT_MILLIS = 5000;
+    private static final long WRITE_TIMEOUT_MILLIS = 5000;
+    private static final long HEARTBEAT_MILLIS = 5000;
+    // a peer that sent nothing, not even a PING, for this long is gone
+    private static final int PEER_TIMEOUT_MILLIS = 15_000;
+    private static final int SEND_QUEUE_SIZE = 10_000;
+
+    private final String nodeId;
+    private final String bindHost;
+    private final int clusterPort;
+    private final List<String> peers;
+    private final SecretKeySpec key;
+    private final Map<String, Set<ClientHandler>> localSessions = new ConcurrentHashMap<>();
+    private final PresenceTracker presence = new PresenceTracker();
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    // the authenticated channel each peer currently sends on, by node id
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile Consumer<String> revocationListener = username -> {
+    };
+    private volatile BiConsumer<String, String> invalidationListener = (kind, username) -> {
+    };
+
+    /**
+     * Constructor for ClusterNode with parameters
+     *
+     * @param nodeId      the id of this node, the host:port its peers reach it on
+     * @param bindHost    the interface to listen on for peer connections
+     * @param clusterPort the port to listen on for peer connections, 0 for a single node setup
+     * @param peers       the ids (host:port) of the other nodes in the cluster
+     * @param secret      the cluster key every node shares, null for a single node setup
+     */
+    public ClusterNode(String nodeId, String bindHost, int clusterPort, List<String> peers, byte[] secret) {
+        this.nodeId = nodeId;
+        this.bindHost = bindHost;
+        this.clusterPort = clusterPort;
+        this.peers = List.copyOf(peers);
+        this.key = secret != null ? new SecretKeySpec(secret, "HmacSHA256") : null;
+    }
+
+    /**
+     * Creates a node that is not part of any cluster. Sessions are only tracked locally.
+     *
+     * @return a standalone node
+     */
+    public static ClusterNode standalone() {
+        return new ClusterNode("local", null, 0, List.of(), null);
+    }
+
+    /**
+     * Starts listening for peers and introduces this node to every known peer.
+     */
+    public void start() {
+        if (clusterPort <= 0) {
+            return;
+        }
+        Thread listener = new Thread(this::acceptPeers, "cluster-listener");
+        listener.setDaemon(true);
+        listener.start();
+        for (String peer : peers) {
+            links.put(peer, new PeerLink(peer));
+        }
+        Thread heartbeat = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(HEARTBEAT_MILLIS);
+                    for (PeerLink link : links.values()) {
+                        link.checkWrite();
+                        link.offer("PING");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "cluster-heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+        System.out.println("Cluster node " + nodeId + " started on " + bindHost + ":" + clusterPort + " with peers " + peers);
+    }
+
+    /**
+     * Registers a session that logged in on this node and announces it to the peers.
+     *
+     * @param username the username of the logged in user
+     * @param handler  the handler of the connection
+     */
+    public void sessionOpened(String username, ClientHandler handler) {
+        // updated and announced under the user's entry, so an ENDSESSION never overtakes a SESSION
+        localSessions.compute(username, (user, handlers) -> {
+            Set<ClientHandler> updated = handlers != null ? handlers : ConcurrentHashMap.newKeySet();
+            updated.add(handler);
+            presence.sessionOpened(username, nodeId, true);
+            broadcast("SESSION:::" + username + ":::" + nodeId);
+            return updated;
+        });
+    }
+
+    /**
+     * Removes a session of this node, and announces to the peers that the user has no session
+     * here any more if it was the last one.
+     *
+     * @param username the username of the user
+     * @param handler  the handler of the connection
+     */
+    public void sessionClosed(String username, ClientHandler handler) {
+        localSessions.computeIfPresent(username, (user, handlers) -> {
+            if (!handlers.remove(handler) || !handlers.isEmpty()) {
+                return handlers;
+            }
+            presence.sessionClosed(username, nodeId, true);
+            broadcast("ENDSESSION:::" + username + ":::" + nodeId);
+            return null;
+        });
+    }
+
+    /**
+     * @param username the username to look up
+     * @return true if the user has a session on any node of the cluster
+     */
+    public boolean isOnline(String username) {
+        return !presence.locate(username).isEmpty();
+    }
+
+    /**
+     * @return the presence of the users of the whole cluster
+     */
+    public PresenceTracker getPresence() {
+        return presence;
+    }
+
+    /**
+     * Disconnects the user wherever in the cluster they are connected.
+     *
+     * @param username the username of the user to kick
+     */
+    public void kick(String username) {
+        route(username, "KICK:::" + username);
+    }
+
+    /**
+     * Revokes the credentials of a user on every node of the cluster, e.g. after an admin changed
+     * the password or admin flag: the revocation listener of each node is called and a session of
+     * the user is logged out.
+     *
+     * @param username the username of the user
+     */
+    public void revokeCredentials(String username) {
+        handle("REVOKE:::" + username);
+        broadcast("REVOKE:::" + username);
+    }
+
+    /**
+     * Sets what is called when the credentials of a user are revoked anywhere in the cluster.
+     *
+     * @param revocationListener called with the username of the user
+     */
+    public void setRevocationListener(Consumer<String> revocationListener) {
+        this.revocationListener = revocationListener;
+    }
+
+    /**
+     * Tells the other nodes of the cluster that cached data of a user changed on this node.
+     *
+     * @param kind     the kind of the change, passed on to their invalidation listeners
+     * @param username the username of the user
+     */
+    public void invalidate(String kind, String username) {
+        broadcast("INVALIDATE:::" + kind + ":::" + username);
+    }
+
+    /**
+     * Sets what is called when another node announces a cache invalidation.
+     *
+     * @param invalidationListener called with the kind of the change and the username
+     */
+    public void setInvalidationListener(BiConsumer<String, String> invalidationListener) {
+        this.invalidationListener = invalidationListener;
+    }
+
+    /**
+     * Sends a notification line to the user wherever in the cluster they are connected.
+     *
+     * @param username the username of the user
+     * @param text     the notification text
+     */
+    public void notifyUser(String username, String text) {
+        route(username, "NOTIFY:::" + username + ":::" + text);
+    }
+
+    /**
+     * Handles a command on this node if the user has a session here, and forwards it to every
+     * other node the user has a session on.
+     *
+     * @param username the username of the target user
+     * @param command  the node to node command
+     */
+    private void route(String username, String command) {
+        for (String owner : presence.locate(username)) {
+            if (owner.equals(nodeId)) {
+                handle(command);
+            } else {
+                send(owner, command);
+            }
+        }
+    }
+
+    /**
+     * @param username the username of the user
+     * @return the handlers of the sessions of the user on this node, copied so that they can close
+     */
+    private List<ClientHandler> localHandlers(String username) {
+        Set<ClientHandler> handlers = localSessions.get(username);
+        return handlers != null ? List.copyOf(handlers) : List.of();
+    }
+
+    /**
+     * Accepts peer connections and reads each of them on its own thread.
+     */
+    private void acceptPeers() {
+        try (ServerSocket serverSocket = new ServerSocket(clusterPort, 50, InetAddress.getByName(bindHost))) {
+            while (true) {
+                Socket peer = serverSocket.accept();
+                Thread reader = new Thread(() -> readPeer(peer), "cluster-peer");
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            System.err.println("Error accepting peer connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Authenticates a peer and reads its commands until it disconnects or goes quiet, then
+     * forgets the sessions it announced.
+     *
+     * @param peer the peer socket
+     */
+    private void readPeer(Socket peer) {
+        String peerId = null;
+        try (peer; BufferedReader reader = new BufferedReader(new InputStreamReader(peer.getInputStream(), StandardCharsets.UTF_8))) {
+            peerId = authenticate(peer, reader);
+            if (peerId == null) {
+                System.err.println("Rejected cluster connection from " + peer.getRemoteSocketAddress());
+                return;
+            }
+            Socket previous = inbound.put(peerId, peer);
+            if (previous != null) {
+                previous.close(); // the peer reconnected, its old channel is dead
+            }
+            peer.setSoTimeout(PEER_TIMEOUT_MILLIS);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    handle(line);
+                } catch (RuntimeException e) {
+                    System.err.println("Invalid cluster command from " + peerId + ": " + e.getMessage());
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("Peer " + peerId + " timed out.");
+        } catch (IOException e) {
+            System.err.println("Error reading from peer: " + e.getMessage());
+        } finally {
+            if (peerId != null && inbound.remove(peerId, peer)) {
+                int expired = presence.nodeLost(peerId);
+                // invalidations the peer sent while the channel was failing may be lost
+                invalidationListener.accept(DatabaseHandler.INVALIDATE_ALL, peerId);
+                System.out.println("Lost peer " + peerId + ", " + expired + " of its sessions expired.");
+            }
+        }
+    }
+
+    /**
+     * Challenges a connecting peer to prove that it has the cluster key.
+     *
+     * @return the id of the peer, or null if it failed the challenge
+     */
+    private String authenticate(Socket peer, BufferedReader reader) throws IOException {
+        peer.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String challenge = Base64.getEncoder().encodeToString(nonce);
+        Writer writer = new OutputStreamWriter(peer.getOutputStream(), StandardCharsets.UTF_8);
+        writer.write("CHALLENGE:::" + challenge + "\n");
+        writer.flush();
+        String line = reader.readLine();
+        String[] parts = line != null ? line.split(":::") : new String[0];
+        if (parts.length != 3 || !parts[0].equals("AUTH")) {
+            return null;
+        }
+        try {
+            byte[] proof = Base64.getDecoder().decode(parts[2]);
+            return MessageDigest.isEqual(proof, sign(challenge, parts[1])) ? parts[1] : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the HMAC of a challenge and the node answering it
+     */
+    private byte[] sign(String challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal((challenge + "\n" + node).getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC is not available", e);
+        }
+    }
+
+    /**
+     * Applies a node to node command to the state of this node.
+     *
+     * @param command the command line
+     */
+    private void handle(String command) {
+        String[] parts = command.split(":::", 3);
+        int expected = switch (parts[0]) {
+            case "PING" -> 1;
+            case "HELLO", "KICK", "REVOKE" -> 2;
+            case "SESSION", "ENDSESSION", "NOTIFY", "INVALIDATE" -> 3;
+            default -> 0;
+        };
+        if (expected == 0 || parts.length < expected) {
+            System.err.println("Invalid cluster command: " + command);
+            return;
+        }
+        switch (parts[0]) {
+            case "HELLO" -> {
+                // a peer (re)joined, tell it who is connected here
+                for (String username : localSessions.keySet()) {
+                    send(parts[1], "SESSION:::" + username + ":::" + nodeId);
+                }
+            }
+            case "SESSION" -> presence.sessionOpened(parts[1], parts[2], false);
+            case "ENDSESSION" -> presence.sessionClosed(parts[1], parts[2], false);
+            case "KICK" -> localHandlers(parts[1]).forEach(ClientHandler::kick);
+            case "REVOKE" -> {
+                revocationListener.accept(parts[1]);
+                localHandlers(parts[1]).forEach(ClientHandler::credentialsRevoked);
+            }
+            case "INVALIDATE" -> invalidationListener.accept(parts[1], parts[2]);
+            case "NOTIFY" -> localHandlers(parts[1]).forEach(handler -> handler.deliver(parts[2]));
+            default -> {
+                // PING only keeps the channel alive
+            }
+        }
+    }
+
+    /**
+     * Sends a command to every peer.
+     *
+     * @param command the command line
+     */
+    private void broadcast(String command) {
+        for (PeerLink link : links.values()) {
+            link.offer(command);
+        }
+    }
+
+    /**
+     * Queues a command for a peer. It is sent by the peer's own thread, so the caller never waits
+     * on the network.
+     *
+     * @param peer    the id (host:port) of the peer
+     * @param command the command line
+     */
+    private void send(String peer, String command) {
+        if (clusterPort <= 0) {
+            return;
+        }
+        PeerLink link = links.get(peer);
+        if (link == null) {
+            System.err.println("Unknown peer " + peer + ", dropping " + command);
+            return;
+        }
+        link.offer(command);
+    }
+
+    /**
+     * The outgoing channel to one peer and the thread that writes to it.
+     * Commands to a peer that is down are dropped: the sessions they announce are sent again when
+     * the channel is reopened.
+     */
+    private class PeerLink {
+
+        private final String peer;
+        private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(SEND_QUEUE_SIZE);
+        private volatile Socket socket;
+        private volatile long writeStarted; // System.nanoTime() of the write in progress, 0 if none
+        private long retryAt;
+
+        PeerLink(String peer) {
+            this.peer = peer;
+            Thread sender = new Thread(this::sendQueued, "cluster-send-" + peer);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        /**
+         * Queues a command, or drops it if the peer is too far behind.
+         */
+        void offer(String command) {
+            if (!queue.offer(command)) {
+                System.err.println("Send queue of peer " + peer + " is full, dropping " + command);
+            }
+        }
+
+        /**
+         * Closes the channel if a write has been blocked for too long, e.g. because the peer
+         * stopped reading, which makes the write fail and the channel reconnect.
+         */
+        void checkWrite() {
+            long started = writeStarted;
+            Socket current = socket;
+            if (started != 0 && current != null
+                    && System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS)) {
+                System.err.println("Write to peer " + peer + " timed out, reconnecting.");
+                closeQuietly(current);
+            }
+        }
+
+        /**
+         * Writes the queued commands for as long as the server runs.
+         */
+        private void sendQueued() {
+            while (true) {
+                String command;
+                try {
+                    command = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // a channel may have died with its peer, so reconnect once before giving up
+                for (int attempt = 0; attempt < 2; attempt++) {
+                    try {
+                        write(command);
+                        break;
+                    } catch (IOException e) {
+                        closeQuietly(socket);
+                        socket = null;
+                        if (attempt == 1 || System.nanoTime() < retryAt) {
+                            break; // dropped
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Writes one command, connecting first if needed.
+         */
+        private void write(String command) throws IOException {
+            Socket current = socket;
+            if (current == null) {
+                if (System.nanoTime() < retryAt) {
+                    throw new IOException("peer " + peer + " is down");
+                }
+                try {
+                    current = connect();
+                } catch (IOException e) {
+                    retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS);
+                    System.err.println("Error connecting to peer " + peer + ": " + e.getMessage());
+                    throw e;
+                }
+                socket = current;
+            }
+            writeStarted = System.nanoTime();
+            try {
+                OutputStream out = current.getOutputStream();
+                out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } finally {
+                writeStarted = 0;
+            }
+        }
+
+        /**
+         * Opens the channel to the peer, answers its challenge and announces the sessions of this
+         * node, which the peer forgot if it lost the previous channel.
+         *
+         * @return the authenticated socket
+         */
+        private Socket connect() throws IOException {
+            int separator = peer.lastIndexOf(':');
+            Socket connection = new Socket();
+            try {
+                connection.connect(new InetSocketAddress(peer.substring(0, separator),
+                        Integer.parseInt(peer.substring(separator + 1))), CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                connection.setSoTimeout(AUTH_TIMEOUT_MILLIS);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                if (line == null || !line.startsWith("CHALLENGE:::")) {
+                    throw new IOException("no challenge received");
+                }
+                String challenge = line.substring("CHALLENGE:::".length());
+                StringBuilder hello = new StringBuilder();
+                hello.append("AUTH:::").append(nodeId).append(":::")
+                        .append(Base64.getEncoder().encodeToString(sign(challenge, nodeId))).append('\n');
+                hello.append("HELLO:::").append(nodeId).append('\n');
+                for (String username : localSessions.keySet()) {
+                    hello.append("SESSION:::").append(username).append(":::").append(nodeId).append('\n');
+                }
+                OutputStream out = connection.getOutputStream();
+                out.write(hello.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                return connection;
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(connection);
+                throw e instanceof IOException io ? io : new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring errors.
+     */
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
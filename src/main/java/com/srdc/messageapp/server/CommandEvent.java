@@ -0,0 +1,33 @@
+package com.srdc.messageapp.server;
+
+/**
+ * JDK Flight Recorder event for a single client command handled by ClientHandler.
+ * It records the action, the logged in user, the size of the request line and how long
+ * the handler thread spent on the command.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.srdc.messageapp.Command")
+@Label("Client Command")
+@Category({"Message App", "Server"})
+@Description("A command handled by ClientHandler")
+@StackTrace(false)
+public class CommandEvent extends Event {
+
+    @Label("Action")
+    String action;
+
+    @Label("User")
+    String user;
+
+    @Label("Payload Size")
+    @DataAmount
+    long payloadSize;
+}
@@ -0,0 +1,46 @@
+package com.srdc.messageapp.server;
+
+/**
+ * JDK Flight Recorder event for a client connection being accepted, rejected, reaped or closed.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.srdc.messageapp.Connection")
+@Label("Client Connection")
+@Category({"Message App", "Server"})
+@Description("A client connection was accepted, rejected, reaped for missing heartbeats or closed")
+@StackTrace(false)
+public class ConnectionEvent extends Event {
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Remote Address")
+    String remoteAddress;
+
+    @Label("Active Connections")
+    int activeConnections;
+
+    /**
+     * Records a connection lifecycle change if connection events are enabled.
+     *
+     * @param kind              accepted, rejected, reaped or closed
+     * @param remoteAddress     the address of the client
+     * @param activeConnections the number of connections being handled afterwards
+     */
+    static void emit(String kind, String remoteAddress, int activeConnections) {
+        ConnectionEvent event = new ConnectionEvent();
+        if (event.isEnabled()) {
+            event.kind = kind;
+            event.remoteAddress = remoteAddress;
+            event.activeConnections = activeConnections;
+            event.commit();
+        }
+    }
+}
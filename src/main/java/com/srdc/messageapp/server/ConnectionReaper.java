@@ -0,0 +1,102 @@
+package com.srdc.messageapp.server;
+
+/**
+ * This class closes client connections that have gone quiet for too long. Clients send a PING
+ * line at a fixed interval while they are idle, so a connection that has read nothing for the
+ * idle timeout belongs to a client that crashed or whose network went away without closing the
+ * TCP connection. Such a connection would otherwise keep its ClientHandler thread blocked in
+ * readLine() for good. One thread checks every connection a few times per timeout, and closing
+ * the socket makes the handler thread finish and release the session like a normal logout.
+ * A handler that is busy with a command is not idle, as it does not read heartbeats meanwhile.
+ */
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionReaper {
+
+    private static final long MIN_CHECK_MILLIS = 1000;
+
+    private final long idleTimeoutMillis;
+    private final Set<ClientHandler> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong reaped = new AtomicLong();
+
+    /**
+     * Constructor for ConnectionReaper with parameters
+     *
+     * @param idleTimeoutMillis the time without any input after which a connection is closed,
+     *                          0 or less to never close idle connections
+     */
+    public ConnectionReaper(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Starts the thread that checks the connections, unless idle connections are kept.
+     */
+    public void start() {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        long checkMillis = Math.max(MIN_CHECK_MILLIS, idleTimeoutMillis / 4);
+        Thread checker = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(checkMillis);
+                    reapIdle();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    System.err.println("Error reaping idle connections: " + e.getMessage());
+                }
+            }
+        }, "connection-reaper");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /**
+     * @param handler a connection that started reading from its client
+     */
+    void register(ClientHandler handler) {
+        connections.add(handler);
+    }
+
+    /**
+     * @param handler a connection that is closing
+     */
+    void unregister(ClientHandler handler) {
+        connections.remove(handler);
+    }
+
+    /**
+     * @return the number of connections closed for missing their heartbeats since the server started
+     */
+    public long getReapedCount() {
+        return reaped.get();
+    }
+
+    /**
+     * @return the idle timeout and the number of connections watched and reaped
+     */
+    public String getStats() {
+        return String.format("Idle connections: %d watched, %d reaped, timeout %s",
+                connections.size(), reaped.get(), idleTimeoutMillis > 0 ? idleTimeoutMillis / 1000 + " s" : "off");
+    }
+
+    /**
+     * Closes every connection that has waited for input without reading anything for the idle timeout.
+     */
+    private void reapIdle() {
+        long now = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        for (ClientHandler handler : connections) {
+            if (now - handler.getLastActivity() >= timeoutNanos && handler.reap()) {
+                connections.remove(handler);
+                reaped.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.srdc.messageapp.server;
+
+/**
+ * This tool measures the socket writes per command response of the two output paths a
+ * ClientHandler can have: an autoflushing PrintWriter that writes every line on its own (the old
+ * path), and a buffered PrintWriter that is flushed once per command (the current one).
+ * Responses are written over a loopback connection to a thread that reads them away. Every call
+ * that reaches the socket's output stream is counted, and each one is a write(2) of the socket.
+ * The command mix is that of a typical session: one line replies (SENDMSG, PING), two line
+ * replies (LOGIN with its resume token) and a multi-line reply like a page of LISTUSERS.
+ */
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+public class OutputFlushBenchmark {
+
+    private static final String[][] RESPONSES = {
+            {"\nMessage sent successfully at 2024-05-01 12:00:00"},
+            {"PONG"},
+            {"\nLogin successful. Admin: false", "RESUMETOKEN:::" + "x".repeat(120)},
+            page(50),
+    };
+
+    /**
+     * Runs both output paths and prints the socket writes per command and the throughput of each.
+     *
+     * @param args the number of commands to send per path, 100000 by default
+     * @throws Exception if the loopback connection fails
+     */
+    public static void main(String[] args) throws Exception {
+        int commands = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        run("autoflush per line", commands, false);
+        run("buffered, one flush per command", commands, true);
+    }
+
+    /**
+     * Writes the command responses through one output path and prints what it cost.
+     *
+     * @param name     the name of the path
+     * @param commands the number of command responses to write
+     * @param buffered true for the buffered path flushed once per command
+     * @throws Exception if the loopback connection fails
+     */
+    private static void run(String name, int commands, boolean buffered) throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket peer = listener.accept()) {
+            socket.setTcpNoDelay(true);
+            Thread drain = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream in = peer.getInputStream()) {
+                    while (in.read(buffer) >= 0) {
+                        // the responses are only read away
+                    }
+                } catch (IOException e) {
+                    // the benchmark closed the connection
+                }
+            }, "benchmark-drain");
+            drain.start();
+
+            CountingOutputStream counter = new CountingOutputStream(socket.getOutputStream());
+            PrintWriter output = buffered
+                    ? new PrintWriter(new BufferedWriter(new OutputStreamWriter(counter), ClientHandler.OUTPUT_BUFFER_SIZE), false)
+                    : new PrintWriter(new OutputStreamWriter(counter), true);
+            long lines = 0;
+            long started = System.nanoTime();
+            for (int i = 0; i < commands; i++) {
+                for (String line : RESPONSES[i % RESPONSES.length]) {
+                    output.println(line);
+                    lines++;
+                }
+                if (buffered) {
+                    output.flush(); // what the command loop does after each command
+                }
+            }
+            output.flush();
+            long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+            socket.shutdownOutput();
+            drain.join();
+            System.out.println(String.format("%-32s %d commands, %d lines: %d writes, %.2f writes/command, %.0f commands/s",
+                    name, commands, lines, counter.writes, counter.writes / (double) commands, commands * 1000.0 / elapsedMillis));
+        }
+    }
+
+    /**
+     * @return a LISTUSERS page of the given number of users
+     */
+    private static String[] page(int users) {
+        String[] page = new String[users + 2];
+        page[0] = "LISTUSERS:::";
+        for (int i = 1; i <= users; i++) {
+            page[i] = "USER:::user" + i + ":::Name:::Surname:::M:::user" + i + "@example.com:::Ankara:::false";
+        }
+        page[users + 1] = "ENDLISTUSERS:::user" + users;
+        return page;
+    }
+
+    /**
+     * Counts the writes that reach the socket, passing arrays through whole as the socket stream does.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long writes;
+
+        /**
+         * Constructor for CountingOutputStream with parameters
+         *
+         * @param out the socket output stream
+         */
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writes++;
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writes++;
+            out.write(b, off, len);
+        }
+    }
+}
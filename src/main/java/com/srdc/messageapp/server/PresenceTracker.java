@@ -0,0 +1,156 @@
+package com.srdc.messageapp.server;
+
+/**
+ * This class keeps track of who is online and when users were last seen.
+ * It is updated by the ClusterNode whenever a session opens or closes, on this node or on a peer,
+ * and every lookup is a read of a concurrent map, so WHOISONLINE needs no database query.
+ * A user may be connected to several nodes at once, so every user has the set of nodes holding
+ * a session of theirs, and goes offline when the last of them closes it.
+ * Last seen times of sessions on this node are collected in memory and written to the users
+ * table in periodic batches instead of on every login and logout.
+ */
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+public class PresenceTracker {
+
+    private final Map<String, Set<String>> online = new ConcurrentHashMap<>(); // username -> node ids
+    private final Map<String, LocalDateTime> lastSeen = new ConcurrentHashMap<>();
+    private final Map<String, LocalDateTime> unflushed = new ConcurrentHashMap<>();
+
+    /**
+     * Marks a user as online.
+     *
+     * @param username the username of the user
+     * @param nodeId   the id of the node the user is connected to
+     * @param local    true if the session is on this node, whose last seen times this node writes
+     */
+    public void sessionOpened(String username, String nodeId, boolean local) {
+        online.compute(username, (user, nodes) -> {
+            Set<String> updated = nodes != null ? nodes : ConcurrentHashMap.newKeySet();
+            updated.add(nodeId);
+            return updated;
+        });
+        seen(username, local);
+    }
+
+    /**
+     * Records that a node no longer holds a session of a user. The user goes offline when no
+     * other node holds one.
+     *
+     * @param username the username of the user
+     * @param nodeId   the id of the node the session was on
+     * @param local    true if the session was on this node
+     * @return true if the user went offline
+     */
+    public boolean sessionClosed(String username, String nodeId, boolean local) {
+        boolean[] offline = new boolean[1];
+        boolean[] removed = new boolean[1];
+        online.computeIfPresent(username, (user, nodes) -> {
+            removed[0] = nodes.remove(nodeId);
+            offline[0] = nodes.isEmpty();
+            return offline[0] ? null : nodes;
+        });
+        if (removed[0]) {
+            seen(username, local);
+        }
+        return offline[0];
+    }
+
+    /**
+     * Forgets the sessions of a node that is gone.
+     *
+     * @param nodeId the id of the node
+     * @return the number of users that went offline
+     */
+    public int nodeLost(String nodeId) {
+        int lost = 0;
+        for (String username : online.keySet()) {
+            if (sessionClosed(username, nodeId, false)) {
+                lost++;
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * @param username the username to look up
+     * @return the ids of the nodes the user is connected to, empty if the user is offline
+     */
+    public Set<String> locate(String username) {
+        Set<String> nodes = online.get(username);
+        return nodes != null ? Set.copyOf(nodes) : Set.of();
+    }
+
+    /**
+     * @return the usernames of the users online anywhere in the cluster, sorted
+     */
+    public List<String> getOnlineUsers() {
+        List<String> users = new ArrayList<>(online.keySet());
+        Collections.sort(users);
+        return users;
+    }
+
+    /**
+     * @param username the username to look up
+     * @return the last time the user logged in or out since the server started, null if unknown
+     */
+    public LocalDateTime getLastSeen(String username) {
+        return lastSeen.get(username);
+    }
+
+    /**
+     * Starts writing the collected last seen times every period.
+     *
+     * @param periodMillis the time between two writes
+     * @param writer       writes a batch of last seen times by username
+     */
+    public void startFlushing(long periodMillis, Consumer<Map<String, LocalDateTime>> writer) {
+        Thread flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(periodMillis);
+                    flush(writer);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    System.err.println("Error writing last seen times: " + e.getMessage());
+                }
+            }
+        }, "presence-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Hands the last seen times collected since the previous flush to the writer.
+     */
+    private void flush(Consumer<Map<String, LocalDateTime>> writer) {
+        Map<String, LocalDateTime> batch = new HashMap<>(unflushed);
+        if (batch.isEmpty()) {
+            return;
+        }
+        // an entry updated during the flush is kept for the next one
+        batch.forEach(unflushed::remove);
+        writer.accept(batch);
+    }
+
+    /**
+     * Records that the user was seen now.
+     */
+    private void seen(String username, boolean local) {
+        LocalDateTime now = LocalDateTime.now();
+        lastSeen.put(username, now);
+        if (local) {
+            unflushed.put(username, now);
+        }
+    }
+}
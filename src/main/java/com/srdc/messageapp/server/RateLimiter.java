@@ -0,0 +1,74 @@
+package com.srdc.messageapp.server;
+
+/**
+ * A token bucket rate limiter keyed by an arbitrary string, such as a username.
+ * Each key gets its own bucket that holds up to a fixed number of tokens and is
+ * refilled at a constant rate. The bucket state is a single atomic timestamp that
+ * is updated with compare-and-set, so no lock is taken on the request path.
+ * A bucket that has filled up again is in the same state as a new one, so such buckets are
+ * dropped every few thousand new keys; the map only holds the keys that were active lately.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+
+    private static final int SWEEP_EVERY = 4096; // new buckets between two sweeps of the idle ones
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    // per key: the time at which the bucket will be full again
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * Constructor for RateLimiter with parameters
+     *
+     * @param permitsPerSecond the rate at which tokens are refilled
+     * @param burst            the maximum number of tokens a bucket can hold
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Takes one token from the bucket of the given key if one is available.
+     *
+     * @param key the key of the bucket, e.g. a username
+     * @return true if a token was taken, false if the key is over its limit
+     */
+    public boolean tryAcquire(String key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+            if (created.incrementAndGet() % SWEEP_EVERY == 0) {
+                evictIdle();
+            }
+        }
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets that are full again, the next request of their key starts a new one.
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
@@ -0,0 +1,57 @@
+package com.srdc.messageapp.server;
+
+/**
+ * A bounded window of recently seen ids, each mapped to a value such as the time the
+ * original request was handled. When the window is full the oldest ids are forgotten.
+ * Lookups and inserts use only concurrent collections, so no lock is taken.
+ */
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class RecentIdWindow<V> {
+
+    private final int capacity;
+    private final Map<String, V> values = new ConcurrentHashMap<>();
+    private final Queue<String> order = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor for RecentIdWindow with parameters
+     *
+     * @param capacity the number of ids remembered
+     */
+    public RecentIdWindow(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param id the id to look up
+     * @return the value remembered for the id, null if the id is not in the window
+     */
+    public V get(String id) {
+        return values.get(id);
+    }
+
+    /**
+     * Remembers an id, forgetting the oldest ids if the window is full.
+     * An id that is already in the window keeps its first value.
+     *
+     * @param id    the id
+     * @param value the value to remember for it
+     */
+    public void put(String id, V value) {
+        if (values.putIfAbsent(id, value) != null) {
+            return;
+        }
+        order.add(id);
+        while (values.size() > capacity) {
+            String oldest = order.poll();
+            if (oldest == null) {
+                break;
+            }
+            values.remove(oldest);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.srdc.messageapp.server;
+
+/**
+ * This class issues and checks the resume tokens that let a client log in again without its
+ * password, e.g. after a server restart or a dropped connection.
+ * A token carries the username, the start of the session, the user's credential epoch, a
+ * fingerprint of the password and admin flag it was issued for and an expiry time, signed with
+ * HMAC-SHA256. Forged, expired and revoked tokens are rejected in memory, so a wave of bad
+ * reconnects does not turn into a wave of user queries. A valid token still has its user read
+ * from the database, whose admin flag is used and whose password and admin flag must match the
+ * fingerprint; the admin flag is never taken from the token.
+ * Each user has an in-memory credential epoch that every node bumps when an admin updates or
+ * removes the user, which revokes all tokens issued before. Tokens are renewed on every resume,
+ * but never beyond a fixed lifetime after the password login that started the session.
+ * The key is kept in a file readable by the server's user only (or given in the
+ * MESSAGEAPP_RESUME_KEY environment variable) so that tokens stay valid across restarts and on
+ * every node of a cluster that shares the key.
+ */
+
+import com.srdc.messageapp.models.User;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ResumeTokens {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+    private static final int FINGERPRINT_BYTES = 16;
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    private final long maxSessionSeconds;
+    private final ThreadLocal<Mac> macs;
+    private final Map<String, Long> epochs = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for ResumeTokens with parameters
+     *
+     * @param secret            the signing key
+     * @param ttlSeconds        how long an issued token is valid
+     * @param maxSessionSeconds how long after the password login a session can be resumed at all
+     */
+    public ResumeTokens(byte[] secret, long ttlSeconds, long maxSessionSeconds) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.ttlSeconds = ttlSeconds;
+        this.maxSessionSeconds = maxSessionSeconds;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("HMAC is not available", e);
+            }
+        });
+    }
+
+    /**
+     * Creates the token signer with the key from the MESSAGEAPP_RESUME_KEY environment variable
+     * (base64), or else from the key file, which is created with a random key if it is missing.
+     *
+     * @param keyFile           the file the key is kept in
+     * @param ttlSeconds        how long an issued token is valid
+     * @param maxSessionSeconds how long after the password login a session can be resumed at all
+     * @return the token signer
+     * @throws IOException if the key file cannot be read or written
+     */
+    public static ResumeTokens load(Path keyFile, long ttlSeconds, long maxSessionSeconds) throws IOException {
+        return new ResumeTokens(loadKey(keyFile, "MESSAGEAPP_RESUME_KEY"), ttlSeconds, maxSessionSeconds);
+    }
+
+    /**
+     * Reads an HMAC key from an environment variable (base64), or else from a key file, which is
+     * created with a random key if it is missing. Nodes that share the file share the key. The
+     * file is created readable and writable by its owner only, where the file system allows it.
+     *
+     * @param keyFile  the file the key is kept in
+     * @param variable the environment variable that overrides the file
+     * @return the key
+     * @throws IOException if the key file cannot be read or written
+     */
+    static byte[] loadKey(Path keyFile, String variable) throws IOException {
+        String configured = System.getenv(variable);
+        if (configured != null && !configured.isBlank()) {
+            return Base64.getDecoder().decode(configured.trim());
+        }
+        if (!Files.exists(keyFile)) {
+            byte[] secret = new byte[KEY_BYTES];
+            new SecureRandom().nextBytes(secret);
+            try {
+                Files.createFile(keyFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                Files.createFile(keyFile); // not a POSIX file system, e.g. on Windows
+            }
+            Files.write(keyFile, secret);
+        }
+        return Files.readAllBytes(keyFile);
+    }
+
+    /**
+     * Issues a token for a logged in user.
+     *
+     * @param user         the logged in user, with the password and admin flag from the database
+     * @param sessionStart the epoch second of the password login that started the session
+     * @return the token, made of URL safe base64 characters and a dot
+     */
+    public String issue(User user, long sessionStart) {
+        long expiresAt = Math.min(System.currentTimeMillis() / 1000 + ttlSeconds, sessionStart + maxSessionSeconds);
+        String claims = user.getUsername() + "\n" + sessionStart + "\n" + epoch(user.getUsername()) + "\n"
+                + expiresAt + "\n" + Base64.getEncoder().encodeToString(fingerprint(user));
+        byte[] payload = claims.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payload) + "." + encoder.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * Checks the signature, expiry, session lifetime and credential epoch of a token without
+     * touching the database.
+     *
+     * @param token the token sent by the client
+     * @return the session the token resumes, or null if the token is malformed, forged, expired
+     * or revoked
+     */
+    public Session verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            byte[] payload = decoder.decode(token.substring(0, dot));
+            byte[] signature = decoder.decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, macs.get().doFinal(payload))) {
+                return null;
+            }
+            String[] claims = new String(payload, StandardCharsets.UTF_8).split("\n");
+            if (claims.length != 5) {
+                return null;
+            }
+            long now = System.currentTimeMillis() / 1000;
+            long sessionStart = Long.parseLong(claims[1]);
+            if (Long.parseLong(claims[3]) < now || sessionStart + maxSessionSeconds < now
+                    || Long.parseLong(claims[2]) != epoch(claims[0])) {
+                return null;
+            }
+            return new Session(claims[0], sessionStart, Base64.getDecoder().decode(claims[4]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the user a token was issued for still has the same password and admin flag.
+     *
+     * @param session the session of a verified token
+     * @param user    the user as stored now, null if the user no longer exists
+     * @return true if the session may be resumed as this user
+     */
+    public boolean matches(Session session, User user) {
+        return user != null && user.getUsername().equals(session.getUsername())
+                && MessageDigest.isEqual(session.fingerprint, fingerprint(user));
+    }
+
+    /**
+     * Revokes every token issued to a user so far, e.g. after an admin changed the password or
+     * admin flag. Called on every node of the cluster.
+     *
+     * @param username the username of the user
+     */
+    public void revoke(String username) {
+        epochs.merge(username, 1L, Long::sum);
+    }
+
+    /**
+     * @return the credential epoch of a user, 0 until the first revocation
+     */
+    private long epoch(String username) {
+        return epochs.getOrDefault(username, 0L);
+    }
+
+    /**
+     * @return the keyed digest of the password and admin flag of a user
+     */
+    private byte[] fingerprint(User user) {
+        byte[] credentials = ("credentials\n" + user.getUsername() + "\n" + user.getPassword() + "\n" + user.isAdmin())
+                .getBytes(StandardCharsets.UTF_8);
+        return Arrays.copyOf(macs.get().doFinal(credentials), FINGERPRINT_BYTES);
+    }
+
+    /**
+     * A session restored from a token, before its user is read from the database.
+     */
+    public static class Session {
+
+        private final String username;
+        private final long start;
+        private final byte[] fingerprint;
+
+        /**
+         * Constructor for Session with parameters
+         *
+         * @param username    the username the token was issued to
+         * @param start       the epoch second of the password login that started the session
+         * @param fingerprint the digest of the credentials the token was issued for
+         */
+        Session(String username, long start, byte[] fingerprint) {
+            this.username = username;
+            this.start = start;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @return the username the token was issued to
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return the epoch second of the password login that started the session
+         */
+        public long getStart() {
+            return start;
+        }
+    }
+}
@@ -4,17 +4,63 @@ package com.srdc.messageapp.server;
  * The Server class represents a server that listens for client connections and handles them using a ClientHandler.
  */
 
+import com.srdc.messageapp.database.AsyncDatabaseHandler;
+import com.srdc.messageapp.database.BlobStore;
 import com.srdc.messageapp.database.DatabaseHandler;
+import com.srdc.messageapp.database.MessageSpool;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("InfiniteLoopStatement")
 public class Server {
 
+    // database threads, and so connections, per workload; heavy reads cannot starve logins and sends
+    private static final Map<AsyncDatabaseHandler.Workload, Integer> DB_THREADS = Map.of(
+            AsyncDatabaseHandler.Workload.INTERACTIVE, 2,
+            AsyncDatabaseHandler.Workload.BULK_READ, 2,
+            AsyncDatabaseHandler.Workload.ADMIN, 1);
+    private static final int DB_QUEUE_SIZE = 10000;
+    // sends are ordered per conversation, each stripe has its own connection
+    private static final int DB_WRITE_STRIPES = 4;
+    private static final long LAST_SEEN_FLUSH_MILLIS = 30_000;
+    private static final long STATS_FLUSH_MILLIS = 30_000;
+    private static final Path SPOOL_FILE = Path.of("spool", "messages.spool");
+    private static final Path DEAD_LETTER_FILE = Path.of("spool", "dead-letters.spool");
+    private static final Path RESUME_KEY_FILE = Path.of("resume.key");
+    private static final Path CLUSTER_KEY_FILE = Path.of("cluster.key");
+    private static final long RESUME_TOKEN_TTL_SECONDS = 12 * 60 * 60;
+    // a session is never resumed longer than this after its password login
+    private static final long RESUME_SESSION_MAX_SECONDS = 7 * 24 * 60 * 60;
+    private static final Path BLOB_DIRECTORY = Path.of("blobs");
+    private static final long BLOB_SWEEP_MILLIS = 60 * 60 * 1000;
+    // an attachment no message references is deleted this long after its last upload
+    private static final long BLOB_GRACE_MILLIS = 24 * 60 * 60 * 1000;
+    // how long a stopping server waits for the queued database operations, e.g. accepted sends
+    private static final long SHUTDOWN_DRAIN_MILLIS = 10_000;
+
     private ServerSocket serverSocket;
+    private int port;
     private DatabaseHandler dbHandler;
+    private AsyncDatabaseHandler asyncDbHandler;
+    private ResumeTokens resumeTokens;
+    private BlobStore blobStore;
+    private ClusterNode cluster = ClusterNode.standalone();
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize = 0; // 0 keeps the OS default
+    private int receiveBufferSize = 0; // 0 keeps the OS default
+    private int maxConnections = 1000;
+    // new connections are rejected while a login or send has been queued for the database this long
+    private long maxDbQueueWaitMillis = 2000;
+    private long idleTimeoutMillis = 90_000; // clients send a heartbeat every 30 seconds
 
     /**
      * Constructor for Server with parameters
@@ -26,16 +72,66 @@ public class Server {
      * @throws Exception if an error occurs during server initialization
      */
     public Server(int port, String dbUrl, String dbUser, String dbPassword) throws Exception {
+        this(port, dbUrl, List.of(), dbUser, dbPassword);
+    }
+
+    /**
+     * Constructor for Server with read replicas
+     *
+     * @param port          the port number to listen for client connections
+     * @param dbUrl         the URL of the primary database
+     * @param dbReplicaUrls the URLs of the read replicas, may be empty
+     * @param dbUser        the username for the database connections
+     * @param dbPassword    the password for the database connections
+     * @throws Exception if an error occurs during server initialization
+     */
+    public Server(int port, String dbUrl, List<String> dbReplicaUrls, String dbUser, String dbPassword) throws Exception {
+        this(port, dbUrl, dbReplicaUrls, List.of(), dbUser, dbPassword);
+    }
+
+    /**
+     * Constructor for Server with read replicas and message shards
+     *
+     * @param port          the port number to listen for client connections
+     * @param dbUrl         the URL of the primary database, which is also the first message shard
+     * @param dbReplicaUrls the URLs of the read replicas of the primary, may be empty
+     * @param dbShardUrls   the URLs of the other message shards, may be empty
+     * @param dbUser        the username for the database connections
+     * @param dbPassword    the password for the database connections
+     * @throws Exception if an error occurs during server initialization
+     */
+    public Server(int port, String dbUrl, List<String> dbReplicaUrls, List<String> dbShardUrls, String dbUser,
+                  String dbPassword) throws Exception {
         try {
-            serverSocket = new ServerSocket(port);
-            dbHandler = new DatabaseHandler(dbUrl, dbUser, dbPassword);
+            // accepted sockets keep their channel, which attachment downloads are sent on with transferTo;
+            // bound in start, once the socket options are set
+            serverSocket = ServerSocketChannel.open().socket();
+            this.port = port;
+            dbHandler = new DatabaseHandler(dbUrl, dbReplicaUrls, dbShardUrls, dbUser, dbPassword);
+            asyncDbHandler = new AsyncDatabaseHandler(dbHandler, DB_THREADS, DB_QUEUE_SIZE, DB_WRITE_STRIPES,
+                    new MessageSpool(SPOOL_FILE), new MessageSpool(DEAD_LETTER_FILE));
+            resumeTokens = ResumeTokens.load(RESUME_KEY_FILE, RESUME_TOKEN_TTL_SECONDS, RESUME_SESSION_MAX_SECONDS);
+            blobStore = new BlobStore(BLOB_DIRECTORY);
         } catch (IOException e) {
             System.out.println("Error initializing server socket: " + e.getMessage());
         }
     }
 
     /**
-     * Main method to start the server
+     * Main method to start the server.
+     * Optional arguments run the server as a cluster node: port, cluster port, a comma separated
+     * list of peers and the host peers reach this node on (localhost by default),
+     * e.g. {@code 5001 6001 localhost:6002,localhost:6003}. The cluster port listens on that host
+     * only, unless messageapp.clusterBind names another interface, and peers must share the
+     * cluster key of cluster.key or MESSAGEAPP_CLUSTER_KEY.
+     * Read replicas are given as a comma separated list of JDBC URLs in the messageapp.replicas
+     * system property, message shards next to the primary likewise in messageapp.shards.
+     * Connections that send nothing for messageapp.idleTimeoutSeconds (90 by default, 0 to keep
+     * them) are closed. New connections are rejected while a login or send has been waiting for
+     * the database for over messageapp.maxDbQueueWaitMillis (2000 by default, 0 to never reject).
+     * Client sockets use TCP_NODELAY unless messageapp.tcpNoDelay is false, and the socket buffers
+     * given in bytes by messageapp.sendBufferSize and messageapp.receiveBufferSize (OS defaults
+     * when not set).
      *
      * @param args the command line arguments
      * @throws Exception if an error occurs during server initialization
@@ -44,8 +140,25 @@ public class Server {
         String dbUrl = "jdbc:postgresql://localhost:5432/postgres";
         String dbUser = "postgres";
         String dbPassword = "5611Me_0";
-        int port = 5000;
-        Server server = new Server(port, dbUrl, dbUser, dbPassword);
+        String replicas = System.getProperty("messageapp.replicas", "");
+        List<String> dbReplicaUrls = replicas.isBlank() ? List.of() : Arrays.asList(replicas.split(","));
+        String shards = System.getProperty("messageapp.shards", "");
+        List<String> dbShardUrls = shards.isBlank() ? List.of() : Arrays.asList(shards.split(","));
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        Server server = new Server(port, dbUrl, dbReplicaUrls, dbShardUrls, dbUser, dbPassword);
+        if (args.length > 1) {
+            int clusterPort = Integer.parseInt(args[1]);
+            List<String> peers = args.length > 2 ? Arrays.asList(args[2].split(",")) : List.of();
+            String host = args.length > 3 ? args[3] : "localhost";
+            String bindHost = System.getProperty("messageapp.clusterBind", host);
+            byte[] clusterKey = ResumeTokens.loadKey(CLUSTER_KEY_FILE, "MESSAGEAPP_CLUSTER_KEY");
+            server.setCluster(new ClusterNode(host + ":" + clusterPort, bindHost, clusterPort, peers, clusterKey));
+        }
+        server.setIdleTimeoutMillis(Long.getLong("messageapp.idleTimeoutSeconds", 90) * 1000);
+        server.setMaxDbQueueWaitMillis(Long.getLong("messageapp.maxDbQueueWaitMillis", 2000));
+        server.setTcpNoDelay(Boolean.parseBoolean(System.getProperty("messageapp.tcpNoDelay", "true")));
+        server.setSendBufferSize(Integer.getInteger("messageapp.sendBufferSize", 0));
+        server.setReceiveBufferSize(Integer.getInteger("messageapp.receiveBufferSize", 0));
         server.start();
     }
 
@@ -63,14 +176,145 @@ public class Server {
             System.out.println("Database handler not initialized. Exiting...");
             return;
         }
+        try {
+            // accepted sockets inherit the receive buffer, and windows above 64 KiB must be set before listen
+            if (receiveBufferSize > 0) {
+                serverSocket.setReceiveBufferSize(receiveBufferSize);
+            }
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            System.out.println("Error binding server socket: " + e.getMessage());
+            return;
+        }
+        cluster.setRevocationListener(resumeTokens::revoke);
+        cluster.setInvalidationListener(dbHandler::applyInvalidation);
+        dbHandler.setInvalidationListener(cluster::invalidate);
+        cluster.start();
+        cluster.getPresence().startFlushing(LAST_SEEN_FLUSH_MILLIS, dbHandler::updateLastSeen);
+        dbHandler.startStatsFlushing(STATS_FLUSH_MILLIS);
+        dbHandler.resumePendingRemovals();
+        dbHandler.resumePendingExpiries();
+        blobStore.startSweeping(BLOB_SWEEP_MILLIS, BLOB_GRACE_MILLIS, dbHandler::bindDedicatedConnection,
+                dbHandler::isAttachmentReferenced);
+        ConnectionReaper reaper = new ConnectionReaper(idleTimeoutMillis);
+        reaper.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainDatabaseWork, "db-shutdown"));
         System.out.println("Server started");
         while (true)
             try {
                 Socket socket = serverSocket.accept();
+                if (ClientHandler.getActiveConnections() >= maxConnections) {
+                    ConnectionEvent.emit("rejected", socket.getRemoteSocketAddress().toString(), maxConnections);
+                    rejectConnection(socket, maxConnections + " connections active");
+                    continue;
+                }
+                long queueWait = asyncDbHandler.getQueueWaitMillis();
+                if (maxDbQueueWaitMillis > 0 && queueWait > maxDbQueueWaitMillis) {
+                    ConnectionEvent.emit("rejected", socket.getRemoteSocketAddress().toString(), ClientHandler.getActiveConnections());
+                    rejectConnection(socket, "database work queued for " + queueWait + " ms");
+                    continue;
+                }
+                configureSocket(socket);
+                ConnectionEvent.emit("accepted", socket.getRemoteSocketAddress().toString(), ClientHandler.getActiveConnections() + 1);
                 System.out.println("New client connected");
-                new ClientHandler(socket, dbHandler).start();
+                new ClientHandler(socket, dbHandler, asyncDbHandler, cluster, resumeTokens, blobStore, reaper).start();
             } catch (IOException e) {
                 System.out.println("Error accepting client connection: " + e.getMessage());
             }
     }
+
+    /**
+     * Lets the database executors finish their queued operations before the process exits.
+     * Runs as a shutdown hook, e.g. on Ctrl+C.
+     */
+    private void drainDatabaseWork() {
+        System.out.println("Server stopping, finishing queued database operations...");
+        if (!asyncDbHandler.shutdown(SHUTDOWN_DRAIN_MILLIS)) {
+            System.err.println("Queued database operations did not finish within " + SHUTDOWN_DRAIN_MILLIS / 1000 + " s.");
+        }
+    }
+
+    /**
+     * Applies the configured TCP options to a newly accepted client socket.
+     *
+     * @param socket the accepted client socket
+     * @throws IOException if an option cannot be set
+     */
+    private void configureSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Tells the client that the server is at capacity and closes the connection.
+     *
+     * @param socket the accepted client socket
+     * @param reason why the server is at capacity, for the log
+     */
+    private void rejectConnection(Socket socket, String reason) {
+        System.out.println("Rejecting client connection, " + reason);
+        try (socket; PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+            writer.println("\nServer is busy. Please try again later.");
+        } catch (IOException e) {
+            System.out.println("Error rejecting client connection: " + e.getMessage());
+        }
+    }
+
+    // SETTERS
+
+    /**
+     * @param cluster the cluster node this server is part of
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @param maxConnections the number of concurrent clients above which new connections are rejected
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param maxDbQueueWaitMillis the wait of the oldest queued login or send above which new
+     *                             connections are rejected, 0 to not look at the database queues
+     */
+    public void setMaxDbQueueWaitMillis(long maxDbQueueWaitMillis) {
+        this.maxDbQueueWaitMillis = maxDbQueueWaitMillis;
+    }
+
+    /**
+     * @param tcpNoDelay true to disable Nagle's algorithm on client sockets
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * @param sendBufferSize the SO_SNDBUF size in bytes for client sockets, 0 for the OS default
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * @param receiveBufferSize the SO_RCVBUF size in bytes for client sockets, 0 for the OS default;
+     *                          applied to the listening socket too, so call it before start
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * @param idleTimeoutMillis the time without input after which a client connection is closed, 0 to never close it
+     */
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
 }
@@ -24,6 +24,103 @@ CREATE TABLE IF NOT EXISTS messages (
     timestamp TIMESTAMP
 );
 
+-- Removed users are tombstoned first and deleted once their messages are detached
+ALTER TABLE users ADD COLUMN IF NOT EXISTS removed_at TIMESTAMP;
+
+CREATE INDEX IF NOT EXISTS messages_sender_idx ON messages (sender);
+CREATE INDEX IF NOT EXISTS messages_receiver_idx ON messages (receiver);
+
+-- Client generated message ids make SENDMSG retries idempotent
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS client_msg_id VARCHAR(64);
+CREATE UNIQUE INDEX IF NOT EXISTS messages_sender_client_msg_id_idx ON messages (sender, client_msg_id);
+
+-- Self-destructing messages, pending expiries are reloaded from the index on startup
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS expires_at TIMESTAMP;
+CREATE INDEX IF NOT EXISTS messages_expires_at_idx ON messages (expires_at) WHERE expires_at IS NOT NULL;
+
+-- Written in batches by the presence tracker
+ALTER TABLE users ADD COLUMN IF NOT EXISTS last_seen TIMESTAMP;
+
+-- Channels store every post once, members read them with their own cursor (fan-out on read)
+CREATE TABLE IF NOT EXISTS channels (
+    name VARCHAR(50) PRIMARY KEY,
+    owner VARCHAR(50) REFERENCES users(username) ON DELETE SET NULL,
+    created_at TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS channel_members (
+    channel VARCHAR(50) REFERENCES channels(name) ON DELETE CASCADE,
+    username VARCHAR(50) REFERENCES users(username) ON DELETE CASCADE,
+    last_read_id BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (channel, username)
+);
+
+CREATE TABLE IF NOT EXISTS channel_messages (
+    id BIGSERIAL PRIMARY KEY,
+    channel VARCHAR(50) NOT NULL REFERENCES channels(name) ON DELETE CASCADE,
+    sender VARCHAR(50) REFERENCES users(username) ON DELETE SET NULL,
+    title VARCHAR(100),
+    content TEXT,
+    timestamp TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS channel_messages_channel_id_idx ON channel_messages (channel, id);
+CREATE INDEX IF NOT EXISTS channel_messages_sender_idx ON channel_messages (sender);
+CREATE INDEX IF NOT EXISTS channel_members_username_idx ON channel_members (username);
+
+-- Posts are numbered per channel in commit order: a post takes the next seq while it holds the lock on
+-- its channel row, so no post becomes visible after one with a higher seq. last_read_id is a seq.
+ALTER TABLE channels ADD COLUMN IF NOT EXISTS last_seq BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE channel_messages ADD COLUMN IF NOT EXISTS seq BIGINT;
+UPDATE channel_messages SET seq = id WHERE seq IS NULL;
+UPDATE channels c SET last_seq = (SELECT COALESCE(MAX(seq), 0) FROM channel_messages m WHERE m.channel = c.name)
+WHERE last_seq = 0;
+CREATE UNIQUE INDEX IF NOT EXISTS channel_messages_channel_seq_idx ON channel_messages (channel, seq);
+
+-- Attachments live in the blob store, messages only keep the SHA-256 hash of the content
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS attachment CHAR(64);
+CREATE INDEX IF NOT EXISTS messages_attachment_idx ON messages (attachment) WHERE attachment IS NOT NULL;
+
+-- Conversation view: both directions of a conversation share one key, read with one index range scan
+-- (usernames cannot contain ':', it separates the fields of the protocol)
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS conversation VARCHAR(101) GENERATED ALWAYS AS (
+    CASE WHEN sender IS NOT NULL AND receiver IS NOT NULL
+        THEN LEAST(sender, receiver) || ':' || GREATEST(sender, receiver) END) STORED;
+CREATE INDEX IF NOT EXISTS messages_conversation_idx ON messages (conversation, timestamp, id);
+
+-- Long message bodies are stored deflated in content_z (content is then NULL), see ContentCompressor.
+-- EXTERNAL keeps TOAST from compressing the deflated bytes a second time.
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS content_z BYTEA;
+ALTER TABLE messages ALTER COLUMN content_z SET STORAGE EXTERNAL;
+
+-- Usage statistics for STATS, added to in batches by every server as messages are saved, see MessageStats
+CREATE TABLE IF NOT EXISTS message_stats_daily (
+    day DATE,
+    sender VARCHAR(50),
+    messages BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (day, sender)
+);
+
+CREATE TABLE IF NOT EXISTS mailbox_stats (
+    username VARCHAR(50) PRIMARY KEY,
+    messages BIGINT NOT NULL DEFAULT 0,
+    bytes BIGINT NOT NULL DEFAULT 0
+);
+
+-- Messages stored before the statistics existed have ids below backfill_below_id,
+-- MessageStatsBackfill counts them once and then sets it to 0
+CREATE TABLE IF NOT EXISTS message_stats_meta (
+    name VARCHAR(50) PRIMARY KEY,
+    value BIGINT NOT NULL
+);
+INSERT INTO message_stats_meta (name, value)
+SELECT 'backfill_below_id', CASE WHEN is_called THEN last_value + 1 ELSE last_value END FROM messages_id_seq
+ON CONFLICT (name) DO NOTHING;
+
+-- Prefix searches in LISTUSERS (LIKE 'abc%') need pattern_ops indexes under non-C collations
+CREATE INDEX IF NOT EXISTS users_username_pattern_idx ON users (username varchar_pattern_ops);
+CREATE INDEX IF NOT EXISTS users_location_pattern_idx ON users (location varchar_pattern_ops);
+
 -- Insert 1 admin by default so that other users can be added by this admin
 INSERT INTO users (username, name, surname, birthdate, gender, email, location, password, isadmin) VALUES
         ('root', 'Root', 'Rootoglu', '1001-01-01', 'M', 'root@admin.com', 'Ankara', 'defaultadmin', TRUE);
\ No newline at end of file
@@ -0,0 +1,36 @@
+-- noinspection SqlNoDataSourceInspectionForFile
+
+-- Messages table of a message shard other than the primary, see MessageShards.
+-- Users only live on the primary, so sender and receiver are plain columns here, and ids come
+-- from the primary's messages_id_seq so that they are unique across all shards.
+CREATE TABLE IF NOT EXISTS messages (
+    id BIGINT PRIMARY KEY,
+    sender VARCHAR(50),
+    receiver VARCHAR(50),
+    title VARCHAR(100),
+    content TEXT,
+    timestamp TIMESTAMP,
+    client_msg_id VARCHAR(64),
+    expires_at TIMESTAMP
+);
+
+CREATE INDEX IF NOT EXISTS messages_sender_idx ON messages (sender);
+CREATE INDEX IF NOT EXISTS messages_receiver_idx ON messages (receiver);
+CREATE UNIQUE INDEX IF NOT EXISTS messages_sender_client_msg_id_idx ON messages (sender, client_msg_id);
+CREATE INDEX IF NOT EXISTS messages_expires_at_idx ON messages (expires_at) WHERE expires_at IS NOT NULL;
+
+-- Attachments live in the blob store, messages only keep the SHA-256 hash of the content
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS attachment CHAR(64);
+CREATE INDEX IF NOT EXISTS messages_attachment_idx ON messages (attachment) WHERE attachment IS NOT NULL;
+
+-- Conversation view: both directions of a conversation share one key, read with one index range scan
+-- (usernames cannot contain ':', it separates the fields of the protocol)
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS conversation VARCHAR(101) GENERATED ALWAYS AS (
+    CASE WHEN sender IS NOT NULL AND receiver IS NOT NULL
+        THEN LEAST(sender, receiver) || ':' || GREATEST(sender, receiver) END) STORED;
+CREATE INDEX IF NOT EXISTS messages_conversation_idx ON messages (conversation, timestamp, id);
+
+-- Long message bodies are stored deflated in content_z (content is then NULL), see ContentCompressor.
+-- EXTERNAL keeps TOAST from compressing the deflated bytes a second time.
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS content_z BYTEA;
+ALTER TABLE messages ALTER COLUMN content_z SET STORAGE EXTERNAL;
@@ -1,7 +1,7 @@
 @echo off
 REM Compile the Java files
 echo Compiling Java files...
-javac -cp lib\postgresql-42.7.3.jar -d out\production\SRDC src\main\java\com\srdc\messageapp\client\Client.java src\main\java\com\srdc\messageapp\server\ClientHandler.java src\main\java\com\srdc\messageapp\server\Server.java src\main\java\com\srdc\messageapp\models\Message.java src\main\java\com\srdc\messageapp\models\User.java src\main\java\com\srdc\messageapp\database\DatabaseHandler.java
+javac -cp lib\postgresql-42.7.3.jar -d out\production\SRDC src\main\java\com\srdc\messageapp\client\Client.java src\main\java\com\srdc\messageapp\client\LocalMessageStore.java src\main\java\com\srdc\messageapp\server\ClientHandler.java src\main\java\com\srdc\messageapp\server\Server.java src\main\java\com\srdc\messageapp\server\OutputFlushBenchmark.java src\main\java\com\srdc\messageapp\server\RateLimiter.java src\main\java\com\srdc\messageapp\server\RecentIdWindow.java src\main\java\com\srdc\messageapp\server\ClusterNode.java src\main\java\com\srdc\messageapp\server\PresenceTracker.java src\main\java\com\srdc\messageapp\server\ResumeTokens.java src\main\java\com\srdc\messageapp\server\CommandEvent.java src\main\java\com\srdc\messageapp\server\ConnectionEvent.java src\main\java\com\srdc\messageapp\server\ConnectionReaper.java src\main\java\com\srdc\messageapp\models\Message.java src\main\java\com\srdc\messageapp\models\User.java src\main\java\com\srdc\messageapp\database\DatabaseHandler.java src\main\java\com\srdc\messageapp\database\UserRemovalWorker.java src\main\java\com\srdc\messageapp\database\InboxCache.java src\main\java\com\srdc\messageapp\database\MessageStats.java src\main\java\com\srdc\messageapp\database\ExpiryWheel.java src\main\java\com\srdc\messageapp\database\AsyncDatabaseHandler.java src\main\java\com\srdc\messageapp\database\StripedExecutor.java src\main\java\com\srdc\messageapp\database\StripedExecutorStress.java src\main\java\com\srdc\messageapp\database\CircuitBreaker.java src\main\java\com\srdc\messageapp\database\MessageSpool.java src\main\java\com\srdc\messageapp\database\ContentCompressor.java src\main\java\com\srdc\messageapp\database\BlobStore.java src\main\java\com\srdc\messageapp\database\ReplicaRouter.java src\main\java\com\srdc\messageapp\database\MessageShards.java src\main\java\com\srdc\messageapp\database\ShardRebalancer.java src\main\java\com\srdc\messageapp\database\MessageStatsBackfill.java src\main\java\com\srdc\messageapp\database\DatabaseEvent.java
 
 if %ERRORLEVEL% neq 0 (
     echo Compilation failed.